@@ -0,0 +1,475 @@
+package org.mcv.app.processor;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * @author Miguelc
+ *
+ * Generates a streaming JSON codec, Xxx$$Codec implementing
+ * org.mcv.app.JsonCodec, for org.mcv.app.Base and each of its subclasses in
+ * the compilation.
+ *
+ * The codec writes what the mapper would (field visibility, no getters):
+ * non-static, non-transient fields without @JsonIgnore, renamed by
+ * @JsonProperty, in declaration order. Primitive and String fields are read
+ * and written directly; other fields go through the mapper. Classes the
+ * codec could not reproduce exactly - other Jackson annotations, type
+ * parameters, private classes - get no codec and keep using the mapper, as
+ * do their subclasses.
+ */
+@SupportedAnnotationTypes("*")
+public class CodecProcessor extends AbstractProcessor {
+
+	static final String BASE = "org.mcv.app.Base";
+	static final String SUFFIX = "$$Codec";
+	static final String JACKSON = "com.fasterxml.jackson.";
+	static final String JSON_IGNORE = "com.fasterxml.jackson.annotation.JsonIgnore";
+	static final String JSON_PROPERTY = "com.fasterxml.jackson.annotation.JsonProperty";
+
+	// classes in this compilation, and whether they get a codec
+	private final Set<String> compiled = new HashSet<>();
+	private final Map<String, Boolean> eligible = new HashMap<>();
+
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations,
+			RoundEnvironment env) {
+		List<TypeElement> types = new ArrayList<>();
+		for (Element element : env.getRootElements()) {
+			collect(element, types);
+		}
+		for (TypeElement type : types) {
+			compiled.add(type.getQualifiedName().toString());
+		}
+		for (TypeElement type : types) {
+			if (isBase(type) && canGenerate(type)) {
+				try {
+					generate(type);
+				} catch (IOException e) {
+					processingEnv.getMessager().printMessage(
+							Diagnostic.Kind.ERROR,
+							"Could not write codec: " + e, type);
+				}
+			}
+		}
+		// other processors (Lombok) still see every annotation
+		return false;
+	}
+
+	private void collect(Element element, List<TypeElement> types) {
+		if (element.getKind() == ElementKind.CLASS) {
+			types.add((TypeElement) element);
+		}
+		for (Element enclosed : element.getEnclosedElements()) {
+			if (enclosed.getKind() == ElementKind.CLASS) {
+				collect(enclosed, types);
+			}
+		}
+	}
+
+	private TypeElement superclass(TypeElement type) {
+		TypeMirror sup = type.getSuperclass();
+		if (sup.getKind() != TypeKind.DECLARED) {
+			return null;
+		}
+		return (TypeElement) ((DeclaredType) sup).asElement();
+	}
+
+	private boolean isBase(TypeElement type) {
+		for (TypeElement t = type; t != null; t = superclass(t)) {
+			if (t.getQualifiedName().contentEquals(BASE)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean canGenerate(TypeElement type) {
+		String name = type.getQualifiedName().toString();
+		Boolean known = eligible.get(name);
+		if (known != null) {
+			return known;
+		}
+		boolean ok = check(type);
+		eligible.put(name, ok);
+		return ok;
+	}
+
+	private boolean check(TypeElement type) {
+		if (!type.getTypeParameters().isEmpty() || hasJackson(type)) {
+			return false;
+		}
+		for (Element e = type; e instanceof TypeElement; e = e
+				.getEnclosingElement()) {
+			if (e.getModifiers().contains(Modifier.PRIVATE)
+					|| ((TypeElement) e).getNestingKind() == NestingKind.LOCAL
+					|| ((TypeElement) e).getNestingKind() == NestingKind.ANONYMOUS) {
+				return false;
+			}
+		}
+		for (VariableElement field : fields(type)) {
+			for (AnnotationMirror a : field.getAnnotationMirrors()) {
+				String an = annotationName(a);
+				if (an.startsWith(JACKSON) && !an.equals(JSON_IGNORE)
+						&& !an.equals(JSON_PROPERTY)) {
+					return false;
+				}
+			}
+		}
+		if (type.getQualifiedName().contentEquals(BASE)) {
+			return true;
+		}
+		TypeElement parent = superclass(type);
+		if (compiled.contains(parent.getQualifiedName().toString())) {
+			return canGenerate(parent);
+		}
+		// compiled earlier: has a codec if one was generated then
+		return processingEnv.getElementUtils().getTypeElement(
+				codecName(parent)) != null;
+	}
+
+	private boolean hasJackson(TypeElement type) {
+		for (AnnotationMirror a : type.getAnnotationMirrors()) {
+			if (annotationName(a).startsWith(JACKSON)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static String annotationName(AnnotationMirror a) {
+		return ((TypeElement) a.getAnnotationType().asElement())
+				.getQualifiedName().toString();
+	}
+
+	/*
+	 * Instance fields in declaration order, including ignored ones.
+	 */
+	private List<VariableElement> fields(TypeElement type) {
+		List<VariableElement> fields = new ArrayList<>();
+		for (VariableElement field : ElementFilter.fieldsIn(type
+				.getEnclosedElements())) {
+			if (!field.getModifiers().contains(Modifier.STATIC)) {
+				fields.add(field);
+			}
+		}
+		return fields;
+	}
+
+	private boolean serialized(VariableElement field) {
+		if (field.getModifiers().contains(Modifier.TRANSIENT)) {
+			return false;
+		}
+		AnnotationMirror ignore = annotation(field, JSON_IGNORE);
+		if (ignore == null) {
+			return true;
+		}
+		Object value = value(ignore, "value");
+		return value != null && !((Boolean) value);
+	}
+
+	private String jsonName(VariableElement field) {
+		AnnotationMirror property = annotation(field, JSON_PROPERTY);
+		if (property != null) {
+			Object value = value(property, "value");
+			if (value != null && !value.toString().isEmpty()) {
+				return value.toString();
+			}
+		}
+		return field.getSimpleName().toString();
+	}
+
+	private static AnnotationMirror annotation(Element element, String name) {
+		for (AnnotationMirror a : element.getAnnotationMirrors()) {
+			if (annotationName(a).equals(name)) {
+				return a;
+			}
+		}
+		return null;
+	}
+
+	private static Object value(AnnotationMirror a, String name) {
+		for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> e : a
+				.getElementValues().entrySet()) {
+			if (e.getKey().getSimpleName().contentEquals(name)) {
+				return e.getValue().getValue();
+			}
+		}
+		return null;
+	}
+
+	private String packageName(TypeElement type) {
+		return processingEnv.getElementUtils().getPackageOf(type)
+				.getQualifiedName().toString();
+	}
+
+	/*
+	 * Codec class name: binary name of the class plus $$Codec, top level in
+	 * the same package.
+	 */
+	private String codecName(TypeElement type) {
+		return processingEnv.getElementUtils().getBinaryName(type) + SUFFIX;
+	}
+
+	private String simpleCodecName(TypeElement type) {
+		String pkg = packageName(type);
+		String name = codecName(type);
+		return pkg.isEmpty() ? name : name.substring(pkg.length() + 1);
+	}
+
+	private void generate(TypeElement type) throws IOException {
+		String pkg = packageName(type);
+		String codec = simpleCodecName(type);
+		String target = type.getQualifiedName().toString();
+		boolean root = target.equals(BASE);
+		List<VariableElement> fields = new ArrayList<>();
+		for (VariableElement field : fields(type)) {
+			if (serialized(field)) {
+				fields.add(field);
+			}
+		}
+
+		JavaFileObject file = processingEnv.getFiler().createSourceFile(
+				codecName(type), type);
+		try (PrintWriter out = new PrintWriter(file.openWriter())) {
+			if (!pkg.isEmpty()) {
+				out.println("package " + pkg + ";");
+				out.println();
+			}
+			out.println("/**");
+			out.println(" * JSON codec for " + target
+					+ ", generated by " + getClass().getName() + ".");
+			out.println(" */");
+			// javac ignores "all": name the warnings the raw casts raise
+			out.println("@SuppressWarnings({ \"unchecked\", \"rawtypes\" })");
+			out.println("public final class " + codec
+					+ " implements org.mcv.app.JsonCodec<" + target + "> {");
+			out.println();
+			if (!root) {
+				out.println("\tprivate final " + codecName(superclass(type))
+						+ " parent;");
+			}
+			for (VariableElement field : fields) {
+				if (!isDirect(field)) {
+					out.println("\tprivate final com.fasterxml.jackson.databind.ObjectReader r_"
+							+ field.getSimpleName() + ";");
+				}
+			}
+			boolean handles = false;
+			for (VariableElement field : fields) {
+				if (!isAccessible(field)) {
+					handles = true;
+					out.println("\tprivate static final java.lang.invoke.MethodHandle GET_"
+							+ field.getSimpleName() + ", SET_" + field.getSimpleName() + ";");
+				}
+			}
+			if (handles) {
+				out.println();
+				out.println("\tstatic {");
+				out.println("\t\ttry {");
+				out.println("\t\t\tjava.lang.invoke.MethodHandles.Lookup lookup = java.lang.invoke.MethodHandles.lookup();");
+				out.println("\t\t\tjava.lang.reflect.Field f;");
+				for (VariableElement field : fields) {
+					if (!isAccessible(field)) {
+						String n = field.getSimpleName().toString();
+						out.println("\t\t\tf = " + target + ".class.getDeclaredField(\"" + n + "\");");
+						out.println("\t\t\tf.setAccessible(true);");
+						out.println("\t\t\tGET_" + n + " = lookup.unreflectGetter(f);");
+						out.println("\t\t\tSET_" + n + " = lookup.unreflectSetter(f);");
+					}
+				}
+				out.println("\t\t} catch (ReflectiveOperationException e) {");
+				out.println("\t\t\tthrow new ExceptionInInitializerError(e);");
+				out.println("\t\t}");
+				out.println("\t}");
+			}
+			out.println();
+			out.println("\tpublic " + codec
+					+ "(com.fasterxml.jackson.databind.ObjectMapper mapper) throws ReflectiveOperationException {");
+			if (!root) {
+				out.println("\t\tparent = new " + codecName(superclass(type)) + "(mapper);");
+			}
+			for (VariableElement field : fields) {
+				if (!isDirect(field)) {
+					String n = field.getSimpleName().toString();
+					out.println("\t\tr_" + n + " = mapper.readerFor(mapper.constructType(" + target
+							+ ".class.getDeclaredField(\"" + n + "\").getGenericType()));");
+				}
+			}
+			out.println("\t}");
+			out.println();
+
+			out.println("\t@Override");
+			out.println("\tpublic void writeFields(com.fasterxml.jackson.core.JsonGenerator gen, "
+					+ target + " obj) throws java.io.IOException {");
+			if (!root) {
+				out.println("\t\tparent.writeFields(gen, obj);");
+			}
+			for (VariableElement field : fields) {
+				out.println("\t\t" + write(field));
+			}
+			out.println("\t}");
+			out.println();
+
+			out.println("\t@Override");
+			out.println("\tpublic boolean readField(com.fasterxml.jackson.core.JsonParser p, String field, "
+					+ target + " obj) throws java.io.IOException {");
+			out.println("\t\tswitch (field) {");
+			for (VariableElement field : fields) {
+				out.println("\t\tcase \"" + escape(jsonName(field)) + "\":");
+				out.println("\t\t\t" + assign(field, read(field)));
+				out.println("\t\t\treturn true;");
+			}
+			out.println("\t\tdefault:");
+			out.println("\t\t\treturn " + (root ? "false" : "parent.readField(p, field, obj)") + ";");
+			out.println("\t\t}");
+			out.println("\t}");
+
+			if (handles) {
+				out.println();
+				out.println("\tprivate static Object get(java.lang.invoke.MethodHandle h, Object obj) {");
+				out.println("\t\ttry {");
+				out.println("\t\t\treturn h.invoke(obj);");
+				out.println("\t\t} catch (Throwable t) {");
+				out.println("\t\t\tthrow new IllegalStateException(t);");
+				out.println("\t\t}");
+				out.println("\t}");
+				out.println();
+				out.println("\tprivate static void set(java.lang.invoke.MethodHandle h, Object obj, Object value) {");
+				out.println("\t\ttry {");
+				out.println("\t\t\th.invoke(obj, value);");
+				out.println("\t\t} catch (Throwable t) {");
+				out.println("\t\t\tthrow new IllegalStateException(t);");
+				out.println("\t\t}");
+				out.println("\t}");
+			}
+			out.println("}");
+		}
+	}
+
+	/*
+	 * Private and final fields are accessed through method handles.
+	 */
+	private static boolean isAccessible(VariableElement field) {
+		return !field.getModifiers().contains(Modifier.PRIVATE)
+				&& !field.getModifiers().contains(Modifier.FINAL);
+	}
+
+	/*
+	 * Read and written without the mapper: primitives but char, and String.
+	 */
+	private static boolean isDirect(VariableElement field) {
+		TypeKind kind = field.asType().getKind();
+		return (kind.isPrimitive() && kind != TypeKind.CHAR) || isString(field);
+	}
+
+	private static boolean isString(VariableElement field) {
+		return field.asType().toString().equals("java.lang.String");
+	}
+
+	private String erasure(VariableElement field) {
+		return processingEnv.getTypeUtils().erasure(field.asType()).toString();
+	}
+
+	private String value(VariableElement field) {
+		String n = field.getSimpleName().toString();
+		if (isAccessible(field)) {
+			return "obj." + n;
+		}
+		TypeMirror type = field.asType();
+		String cast = type.getKind().isPrimitive() ? processingEnv
+				.getTypeUtils().boxedClass((javax.lang.model.type.PrimitiveType) type)
+				.getQualifiedName().toString() : erasure(field);
+		return "((" + cast + ") get(GET_" + n + ", obj))";
+	}
+
+	private String write(VariableElement field) {
+		String name = "\"" + escape(jsonName(field)) + "\"";
+		String value = value(field);
+		switch (field.asType().getKind()) {
+		case BOOLEAN:
+			return "gen.writeBooleanField(" + name + ", " + value + ");";
+		case BYTE:
+		case SHORT:
+		case INT:
+		case LONG:
+		case FLOAT:
+		case DOUBLE:
+			return "gen.writeNumberField(" + name + ", " + value + ");";
+		default:
+			if (isString(field)) {
+				return "gen.writeStringField(" + name + ", " + value + ");";
+			}
+			return "gen.writeFieldName(" + name + "); gen.writeObject(" + value + ");";
+		}
+	}
+
+	private String read(VariableElement field) {
+		switch (field.asType().getKind()) {
+		case BOOLEAN:
+			return "p.getValueAsBoolean()";
+		case BYTE:
+			return "(byte) p.getValueAsInt()";
+		case SHORT:
+			return "(short) p.getValueAsInt()";
+		case INT:
+			return "p.getValueAsInt()";
+		case LONG:
+			return "p.getValueAsLong()";
+		case FLOAT:
+			return "(float) p.getValueAsDouble()";
+		case DOUBLE:
+			return "p.getValueAsDouble()";
+		default:
+			if (isString(field)) {
+				return "p.getValueAsString()";
+			}
+			String cast = field.asType().getKind() == TypeKind.CHAR ? "java.lang.Character"
+					: erasure(field);
+			return "(" + cast + ") r_" + field.getSimpleName() + ".readValue(p)";
+		}
+	}
+
+	private String assign(VariableElement field, String value) {
+		String n = field.getSimpleName().toString();
+		if (isAccessible(field)) {
+			return "obj." + n + " = " + value + ";";
+		}
+		return "set(SET_" + n + ", obj, " + value + ");";
+	}
+
+	private static String escape(String s) {
+		return s.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+}
@@ -1,23 +1,15 @@
 package org.mcv.app;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.InputStream;
-import java.io.PrintStream;
-import java.lang.reflect.Constructor;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 import java.util.Properties;
 
-import jodd.proxetta.MethodInfo;
-import jodd.proxetta.ProxyAspect;
-import jodd.proxetta.impl.ProxyProxetta;
-import jodd.proxetta.pointcuts.ProxyPointcutSupport;
 import lombok.Cleanup;
 import lombok.Data;
 import lombok.ToString;
@@ -28,7 +20,6 @@ import org.mcv.app.LogEntry.Kind;
 
 import com.fasterxml.jackson.annotation.JsonAutoDetect.Visibility;
 import com.fasterxml.jackson.annotation.PropertyAccessor;
-import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
@@ -40,7 +31,7 @@ import com.fasterxml.jackson.databind.ObjectMapper;
  * 
  */
 @Data
-@ToString(exclude = { "db", "props", "log", "logLocation", "logLevel" })
+@ToString(exclude = { "db", "props", "log", "logLocation", "logLevel", "dbLogLevel", "identities" })
 public class Application {
 
 	@Delegate
@@ -54,10 +45,14 @@ public class Application {
 	static Base staticLog = new Base("staticLog", Base.class);
 	File logLocation;
 	LogEntry.Kind logLevel = Kind.DEBUG;
+	LogEntry.Kind dbLogLevel = Kind.DEBUG;
+	CallerLocation callerLocation = CallerLocation.DEFAULT;
 	static boolean logToConsole;
 	
 	Properties props = new Properties();
 
+	IdentityMap identities;
+
 	/**
 	 * Constructor.
 	 * 
@@ -84,19 +79,12 @@ public class Application {
 			log.warn(e, "Could not load config.props");
 		}
 
-		if (mapper == null) {
-			mapper = new ObjectMapper();
-			mapper.findAndRegisterModules();
-			mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
-			mapper.setVisibility(PropertyAccessor.FIELD, Visibility.ANY);
-			mapper.setVisibility(PropertyAccessor.GETTER, Visibility.NONE);
-			mapper.setVisibility(PropertyAccessor.IS_GETTER, Visibility.NONE);
-			mapper.setVisibility(PropertyAccessor.SETTER, Visibility.NONE);
-		}
+		initMapper(props);
 
+		identities = new IdentityMap(props.getProperty("app.identityMap",
+				"true").equals("true"));
 		db = new Db(this, name);
-		db.createAppTable();
-		db.createLogsTable();
+		db.migrate();
 
 		String logLoc = props.getProperty("app.logLocation");
 		//log.info("Log location = " + logLoc);
@@ -112,60 +100,51 @@ public class Application {
 			logLevel = Kind.valueOf(level);
 			//log.info("Log level = " + level);
 		}
+		dbLogLevel = Kind.valueOf(props.getProperty("app.dbLogLevel", "DEBUG"));
 		
 		logToConsole = props.getProperty("app.logToConsole", "true").equals("true");
+		FileAppender.configure(props);
+
+		callerLocation = CallerLocation.of(
+				CallerLocation.Mode.valueOf(props.getProperty(
+						"app.callerLocation", "WALKER")),
+				Integer.parseInt(props.getProperty(
+						"app.callerLocation.sampleRate", "100")));
 		
+		if (props.getProperty("app.json.afterburner", "false").equals("true")
+				&& !Codecs.isAfterburner()) {
+			log.debug("app.json.afterburner: %s not on the classpath",
+					Codecs.AFTERBURNER);
+		}
 		log.info("Application " + name + " initialized.");
 	}
 
+	/*
+	 * Creates the shared JSON mapper.
+	 */
+	static synchronized void initMapper(Properties props) {
+		if (mapper == null) {
+			mapper = new ObjectMapper();
+			Codecs.configure(mapper, props);
+			mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+			mapper.setVisibility(PropertyAccessor.FIELD, Visibility.ANY);
+			mapper.setVisibility(PropertyAccessor.GETTER, Visibility.NONE);
+			mapper.setVisibility(PropertyAccessor.IS_GETTER, Visibility.NONE);
+			mapper.setVisibility(PropertyAccessor.SETTER, Visibility.NONE);
+		}
+	}
+
 	/**
-	 * Sets the Setter and Method proxies on the Base object.
+	 * Sets the Setter and Method proxies on the Base object. The proxy class
+	 * is generated once per class, see {@link Proxies}.
 	 * 
 	 * @param base	Base object
 	 * @return Proxied Base object
 	 */
-	@SuppressWarnings("unchecked")
 	<T extends Base> T setProxies(T base) {
 		try {
 			log.entry(base);
-			ProxyAspect forSetters = new ProxyAspect(SetterAdvice.class,
-					new ProxyPointcutSupport() {
-						public boolean apply(MethodInfo methodInfo) {
-							return isPublic(methodInfo)
-									&& matchMethodName(methodInfo, "set*")
-									&& hasOneArgument(methodInfo)
-									&& !hasAnnotation(methodInfo, Ignore.class);
-						}
-					});
-			ProxyAspect forMethods = new ProxyAspect(MethodAdvice.class,
-					new ProxyPointcutSupport() {
-						public boolean apply(MethodInfo methodInfo) {
-							if (hasReturnValue(methodInfo)
-									&& (matchMethodName(methodInfo, "get*") || (matchMethodName(
-											methodInfo, "is*")))
-									&& hasNoArguments(methodInfo)) {
-								// getter
-								return false;
-							}
-
-							if (matchMethodName(methodInfo, "set*")
-									&& hasOneArgument(methodInfo)) {
-								// setter
-								return false;
-							}
-							if (hasAnnotation(methodInfo, Ignore.class)) {
-								return false;
-							}
-							return isPublic(methodInfo);
-						}
-					});
-
-			ProxyProxetta proxetta = ProxyProxetta.withAspects(forSetters,
-					forMethods);
-			proxetta.setVariableClassName(true);
-			T ret = (T) proxetta.builder(base.getClass()).define()
-					.getConstructor(String.class, Class.class)
-					.newInstance(base.getName(), base.getClass());
+			T ret = Proxies.newInstance(base.getClass(), base.getName());
 			copy(base, ret);
 			return log.exit(ret);
 		} catch (Exception e) {
@@ -175,15 +154,17 @@ public class Application {
 	}
 
 	private <T extends Base> void copy(T from, T to) {
+		jsonClone(from, to);
+		// JSON of older versions has stale 'current' and 'children'
 		to.app = from.app;
 		to.children = from.children;
 		to.created = from.created;
 		to.current = from.current;
 		to.deleted = from.deleted;
 		to.json = from.json;
+		to.stored = from.stored;
 		to.parent = from.parent;
 		to.version = from.version;
-		jsonClone(from, to);
 	}
 
 	@SuppressWarnings("unchecked")
@@ -194,41 +175,6 @@ public class Application {
 		return (T) create(name, clazz);
 	}
 
-	Constructor<?> getConstructor(String name, Class<?> clazz, Object[] params) {
-		Constructor<?>[] ctors = clazz.getConstructors();
-		Class<?>[] paramTypes = new Class<?>[params.length + 2];
-		paramTypes[0] = String.class;
-		paramTypes[1] = Class.class;
-		for (int i = 0; i < params.length; i++) {
-			paramTypes[i + 2] = params[i].getClass();
-		}
-		for (Constructor<?> ctor : ctors) {
-			Class<?>[] classes = ctor.getParameterTypes();
-			if(classes.length != paramTypes.length) continue;
-			boolean mismatch = false;
-			for (int i = 0; i < classes.length; i++) {
-				if (!classes[i].equals(paramTypes[i])) {
-					mismatch = true;
-					break;
-				}
-			}
-			if (!mismatch) {
-				return ctor;
-			}
-		}
-		return null;
-	}
-	
-	Object[] getConstructorParams(String name, Class<?> clazz, Object[] params) {
-		Object[] ctorParams = new Object[params.length + 2];
-		ctorParams[0] = name;
-		ctorParams[1] = clazz;
-		for (int i = 0; i < params.length; i++) {
-			ctorParams[i + 2] = params[i];
-		}
-		return ctorParams;
-	}
-	
 	/**
 	 * Create a NEW base object.
 	 * 
@@ -243,14 +189,16 @@ public class Application {
 		try {
 			log.entry(name, clazz);
 
-			T obj = db.retrieve(name, clazz, params);
+			T obj = identities.get(name, clazz);
+			if (obj != null) {
+				return log.exit(obj);
+			}
+			obj = db.retrieve(name, clazz, params);
 			if (obj == null) {
 				try {
-					Constructor<?> constructor = getConstructor(name, clazz, params);
+					Constructors.Factory constructor = Constructors.find(clazz, params);
 					if(constructor != null) {
-						Object[] ctorParams = getConstructorParams(name, clazz, params);
-						
-						obj = (T) constructor.newInstance((Object[])ctorParams);
+						obj = constructor.newInstance(name, clazz, params);
 						obj.app = this;
 						obj.children = new LinkedList<Long>();
 						obj.created = LocalDateTime.now();
@@ -258,9 +206,9 @@ public class Application {
 						obj.deleted = false;
 						obj.parent = 0;
 						obj.version = 1;
-						obj.json = toJson(obj);
+						db.encode(obj);
 						db.newRecord(obj);
-						return log.exit(setProxies(obj));
+						return log.exit(identities.intern(setProxies(obj)));
 					} else {
 						log.error("No suitable constructor found for types %s",
 								Arrays.deepToString(params));
@@ -284,7 +232,7 @@ public class Application {
 				}
 			} else {
 				// return object retrieved from DB
-				return log.exit(obj);
+				return log.exit(identities.intern(obj));
 			}
 		} catch (Exception e) {
 			log.error(e, "Unexpected error creating object %s.%s",
@@ -303,7 +251,7 @@ public class Application {
 		try {
 			if (obj == null)
 				return "null";
-			String s = mapper.writeValueAsString(obj);
+			String s = Codecs.toJson(obj);
 			if(s.equals("[[]]")) s = "[]";
 			return s;
 		} catch (Exception e) {
@@ -317,13 +265,17 @@ public class Application {
 	 * Deserializes an object.
 	 * 
 	 * @param json	JSON string
-	 * @param obj	Template object
+	 * @param obj	Template object, of the class to read; Base objects have no
+	 * 				default constructor, so they are read into the template
 	 * @return The deserialized object
 	 */
 	public static <T> T fromJson(String json, T obj) {
 		try {
-			return mapper.readValue(json, new TypeReference<T>() {
-			});
+			if (obj instanceof Base) {
+				return Codecs.update(json, obj);
+			}
+			return Codecs.reader(obj != null ? obj.getClass() : Object.class)
+					.readValue(json);
 		} catch (Exception e) {
 			staticLog.warn(e, "Error deserializing JSON: %s", json);
 			throw new WrapperException(e);
@@ -338,7 +290,11 @@ public class Application {
 	 */
 	public static <T extends Base> void jsonClone(T from, T to) {
 		try {
-			mapper.readerForUpdating(to).readValue(from.getJson());
+			if (from.json == null && from.stored != null) {
+				from.stored.decode(to);
+				return;
+			}
+			Codecs.update(from.getJson(), to);
 		} catch (Exception e) {
 			staticLog.warn(e, "Error cloning JSON: %s",
 					from != null ? from.getJson() : "null");
@@ -360,6 +316,7 @@ public class Application {
 		copy(version, base);
 		base.current = true;
 		db.updateCurrent(base);
+		identities.put(base);
 	}
 
 	/**
@@ -377,6 +334,7 @@ public class Application {
 		copy(version, base);
 		base.current = true;
 		db.updateCurrent(base);
+		identities.put(base);
 	}
 
 	/**
@@ -393,6 +351,7 @@ public class Application {
 		copy(ver, base);
 		base.current = true;
 		db.updateCurrent(base);
+		identities.put(base);
 	}
 
 	/**
@@ -405,8 +364,12 @@ public class Application {
 		copy(version, base);
 		base.current = true;
 		db.updateCurrent(base);
+		identities.put(base);
 	}
 
+	static final DateTimeFormatter TIMESTAMP = DateTimeFormatter
+			.ofPattern("yyyy-MM-dd HH:mm:ss.SSS");
+
 	/**
 	 * Writes a log entry to a file.
 	 * 
@@ -416,26 +379,8 @@ public class Application {
 	 */
 	public static boolean writeLog(File file, LogEntry entry) {
 		try {
-			if (!file.getParentFile().exists()) {
-				file.getParentFile().mkdirs();
-			}
-			@Cleanup
-			PrintStream out = new PrintStream(new FileOutputStream(file, true),
-					true, "utf-8");
-			DateTimeFormatter formatter = DateTimeFormatter
-					.ofPattern("yyyy-MM-dd HH:mm:ss.SSS");
-			String msg = String.format("%s [%s] %-6s method: %s.%s(%s) caller: %s.%s(%s)%n%s",
-					entry.getTimestamp().format(formatter),
-					entry.getThread(),
-					entry.getKind().toString(),
-					entry.getClazz(),
-					entry.getMethod(),
-					entry.getMethodLine() >= 0 ? String.valueOf(entry
-							.getMethodLine()) : "",
-					entry.getCallerClass(),
-					entry.getCaller(),
-					entry.getCallerLine() > -0 ? String.valueOf(entry.getCallerLine()) : "", formatObjects(entry));			
-			out.println(msg);
+			String msg = formatLog(entry);
+			FileAppender.append(file, msg + System.lineSeparator());
 			if(logToConsole) {
 				System.out.println(msg);
 			}
@@ -449,6 +394,33 @@ public class Application {
 		}
 	}
 
+	/**
+	 * Formats a log entry as text, as in the log files.
+	 * 
+	 * @param entry	log entry
+	 * @return text
+	 */
+	public static String formatLog(LogEntry entry) {
+		return String.format("%s [%s] %-6s method: %s.%s(%s) caller: %s.%s(%s)%n%s",
+				entry.getTimestamp().format(TIMESTAMP),
+				entry.getThread(),
+				entry.getKind().toString(),
+				entry.getClazz(),
+				located(entry.getMethod()),
+				entry.getMethod() != null && entry.getMethodLine() >= 0 ? String.valueOf(entry
+						.getMethodLine()) : "",
+				located(entry.getCallerClass()),
+				located(entry.getCaller()),
+				entry.getCaller() != null && entry.getCallerLine() > -0 ? String.valueOf(entry.getCallerLine()) : "", formatObjects(entry));
+	}
+
+	/*
+	 * Method and caller are not located in every mode (app.callerLocation).
+	 */
+	private static String located(String s) {
+		return s != null ? s : "?";
+	}
+
 	private static Object formatObjects(LogEntry entry) {
 		switch (entry.kind) {
 		case NONE:
@@ -487,14 +459,7 @@ public class Application {
 			if (obj instanceof StackTraceElement) {
 				sb.append("\t\t").append(obj).append("\r\n");
 			} else if (obj instanceof LinkedHashMap) {
-				@SuppressWarnings("unchecked")
-				Map<String, Object> map = (Map<String, Object>) obj;
-				StackTraceElement ste = new StackTraceElement(
-						(String) map.get("declaringClass"),
-						(String) map.get("methodName"),
-						(String) map.get("fileName"),
-						(Integer) map.get("lineNumber"));
-				sb.append("\t\t").append(ste).append("\r\n");
+				sb.append("\t\t").append(StackStore.element(obj)).append("\r\n");
 			} else {
 				System.out.println("Funny object :" + obj + " of type "
 						+ obj.getClass());
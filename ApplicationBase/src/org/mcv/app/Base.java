@@ -8,6 +8,7 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Properties;
 
+import lombok.AccessLevel;
 import lombok.Cleanup;
 import lombok.EqualsAndHashCode;
 import lombok.Getter;
@@ -23,8 +24,8 @@ import com.fasterxml.jackson.annotation.JsonIgnore;
  *
  */
 @Getter
-@ToString(exclude={"logLocation", "logLevel"})
-@EqualsAndHashCode
+@ToString(exclude={"logLocation", "logLevel", "dbLogLevel", "stored"})
+@EqualsAndHashCode(exclude={"stored"})
 public class Base {
 
 	// ID fields
@@ -60,6 +61,11 @@ public class Base {
 					clazz.getCanonicalName() + ".logLevel",
 					props.getProperty("app.logLevel", "DEBUG")));
 			logLevel = Kind.valueOf(level);
+			level = props.getProperty(clazz.getCanonicalName() + "."
+					+ name + ".dbLogLevel", props.getProperty(
+					clazz.getCanonicalName() + ".dbLogLevel",
+					props.getProperty("app.dbLogLevel", "DEBUG")));
+			dbLogLevel = level(Kind.valueOf(level));
 			
 			if (!logLocation.exists()) {
 				if(!logLocation.getName().endsWith(".log")) {
@@ -82,6 +88,10 @@ public class Base {
 	boolean inBatch;
 	@JsonIgnore
 	String json;
+	// the row as stored, when in a binary format; json is derived from it on demand
+	@JsonIgnore
+	@Getter(AccessLevel.NONE)
+	StorageFormat.Payload stored;
 	@JsonIgnore
 	Application app;
 	@JsonIgnore
@@ -89,15 +99,39 @@ public class Base {
 	File logLocation;
 	@JsonIgnore
 	Kind logLevel;
+	@JsonIgnore
+	Kind dbLogLevel;
+
+	/**
+	 * JSON of the stored version.
+	 * 
+	 * @return JSON
+	 */
+	public String getJson() {
+		if (json == null && stored != null) {
+			json = stored.toJson();
+		}
+		return json;
+	}
 
 	public void setLogLevel(Kind kind) {
-		logLevel = kind;
-		if (kind == Kind.ENTRY)
-			logLevel = Kind.INFO;
-		if (kind == Kind.EXIT)
-			logLevel = Kind.INFO;
-		if (kind == Kind.SETTER)
-			logLevel = Kind.INFO;
+		logLevel = level(kind);
+	}
+
+	/**
+	 * Level for the LOGS table; the log level is for the log file.
+	 * 
+	 * @param kind
+	 */
+	@Ignore
+	public void setDbLogLevel(Kind kind) {
+		dbLogLevel = level(kind);
+	}
+
+	private static Kind level(Kind kind) {
+		if (kind == Kind.ENTRY || kind == Kind.EXIT || kind == Kind.SETTER)
+			return Kind.INFO;
+		return kind;
 	}
 
 	/**
@@ -107,6 +141,7 @@ public class Base {
 		if (current) {
 			deleted = true;
 			app.getDb().storeDeleted(this);
+			app.getIdentities().remove(this);
 		}
 	}
 
@@ -117,6 +152,7 @@ public class Base {
 		if (current) {
 			deleted = false;
 			app.getDb().store(this);
+			app.getIdentities().put(this);
 		}
 	}
 
@@ -200,6 +236,20 @@ public class Base {
 		return (List<T>) app.getVersions(this);
 	}
 
+	/**
+	 * Page of versions.
+	 * 
+	 * @param afterVersion
+	 *            last version of the previous page, 0 for the first page
+	 * @param limit
+	 *            page size
+	 * @return list
+	 */
+	@SuppressWarnings("unchecked")
+	public <T extends Base> List<T> getVersions(long afterVersion, int limit) {
+		return (List<T>) app.getVersionsPage(this, afterVersion, limit);
+	}
+
 	/**
 	 * Make specific version the current one.
 	 * 
@@ -219,12 +269,30 @@ public class Base {
 		return app.getLogs(name, clazz.getCanonicalName());
 	}
 
+	/**
+	 * Get a page of the logs for this object.
+	 * 
+	 * @param after
+	 *            last entry of the previous page, null for the first page
+	 * @param limit
+	 *            page size
+	 * @return logs
+	 */
+	public List<LogEntry> getLogs(LogEntry after, int limit) {
+		return app.getLogsPage(name, clazz.getCanonicalName(), after, limit,
+				null, null);
+	}
+
 	@Ignore
 	void log(LogEntry entry) {
-		if (app != null) {
+		if (app != null && passes(entry.kind, dbLogLevel())) {
 			app.storeLogEntry(entry);
 		}
-		if (logLocation != null && filter(entry)) {
+		LogJournal journal = app != null ? app.getJournal() : null;
+		if (journal != null && passes(entry.kind, journal.level)) {
+			journal.append(entry);
+		}
+		if (logLocation != null && passes(entry.kind, fileLogLevel())) {
 			if (logLocation.isDirectory()) {
 				Application.writeLog(new File(logLocation, clazz.getCanonicalName()
 						+ "." + name + ".log"), entry);
@@ -234,50 +302,69 @@ public class Base {
 		}
 	}
 
+	/**
+	 * Would an entry of this kind be logged anywhere? Checked before building
+	 * the entry, so disabled logging costs next to nothing.
+	 * 
+	 * @param kind
+	 * @return boolean
+	 */
 	@Ignore
-	private boolean filter(LogEntry entry) {
-		// loglevel = DEBUG, INFO, WARN, ERROR, NONE
+	public boolean isLogEnabled(Kind kind) {
+		return (app != null && passes(kind, dbLogLevel()))
+				|| (app != null && app.getJournal() != null && passes(kind,
+						app.getJournal().level))
+				|| (logLocation != null && passes(kind, fileLogLevel()));
+	}
 
-		if (logLevel == null) {
+	@Ignore
+	private Kind fileLogLevel() {
+		if (logLevel == null && app != null) {
 			logLevel = app.logLevel;
 		}
+		return logLevel;
+	}
 
-		switch (entry.kind) {
+	@Ignore
+	private Kind dbLogLevel() {
+		if (dbLogLevel == null && app != null) {
+			dbLogLevel = app.dbLogLevel;
+		}
+		return dbLogLevel;
+	}
+
+	private static boolean passes(Kind kind, Kind level) {
+		// level = DEBUG, INFO, WARN, ERROR, NONE
+		if (level == null) {
+			return true;
+		}
+		switch (kind) {
 		case DEBUG:
-			return logLevel == Kind.DEBUG;
+			return level == Kind.DEBUG;
 		case INFO:
 		case ENTRY:
 		case EXIT:
 		case SETTER:
-			return logLevel == Kind.DEBUG || logLevel == Kind.INFO;
+			return level == Kind.DEBUG || level == Kind.INFO;
 		case WARN:
-			return logLevel != Kind.ERROR && logLevel != Kind.NONE;
+			return level != Kind.ERROR && level != Kind.NONE;
 		case ERROR:
 		default:
-			return logLevel != Kind.NONE;
+			return level != Kind.NONE;
 		}
 	}
 
 	@Ignore
 	void log(Kind kind, String message, List<Object> objList) {
 		
-		StackTraceElement[] elts = Thread.currentThread().getStackTrace();
-		int[] indices = SteUtils.findCalleeAndCaller(elts);
-		
-		StackTraceElement caller = elts[indices[1]];
-		StackTraceElement callee = elts[indices[0]];
+		StackTraceElement[] location = (app != null ? app.callerLocation
+				: CallerLocation.DEFAULT).locate();
 		
 		LogEntry entry = new LogEntry();
-		entry.setCaller(SteUtils.cleanup(caller.getMethodName()));
-		entry.setCallerClass(SteUtils.cleanup(caller.getClassName()));
-		entry.setCallerLine(caller.getLineNumber());
+		CallerLocation.set(entry, location);
 		
 		entry.setClazz(clazz.getCanonicalName());
 		
-		entry.setMethod(SteUtils.cleanup(callee.getMethodName()));
-		entry.setMethodClass(SteUtils.cleanup(callee.getClassName()));
-		entry.setMethodLine(callee.getLineNumber());
-		
 		entry.setKind(kind);
 		entry.setMessage(message);
 		entry.setName(name);
@@ -294,6 +381,8 @@ public class Base {
 	 */
 	@Ignore
 	public void debug(String message, Object... args) {
+		if (!isLogEnabled(Kind.DEBUG))
+			return;
 		log(Kind.DEBUG, String.format(message, args), Collections.emptyList());
 	}
 
@@ -304,6 +393,8 @@ public class Base {
 	 */
 	@Ignore
 	public void info(String message, Object... args) {
+		if (!isLogEnabled(Kind.INFO))
+			return;
 		log(Kind.INFO, String.format(message, args), Collections.emptyList());
 	}
 
@@ -315,6 +406,8 @@ public class Base {
 	 */
 	@Ignore
 	public void warn(Throwable t, String message, Object... args) {
+		if (!isLogEnabled(Kind.WARN))
+			return;
 		Throwable e = WrapperException.unwrap(t);
 		String msg = formatMessage(String.format(message, args), e);
 		log(Kind.WARN, msg, Arrays.asList((Object[])e.getStackTrace()));
@@ -322,6 +415,8 @@ public class Base {
 
 	@Ignore
 	public void warn(String message, Object... args) {
+		if (!isLogEnabled(Kind.WARN))
+			return;
 		String msg = formatMessage(String.format(message, args), null);
 		log(Kind.WARN, msg, Collections.emptyList());
 	}
@@ -334,6 +429,8 @@ public class Base {
 	 */
 	@Ignore
 	public void error(Throwable t, String message, Object... args) {
+		if (!isLogEnabled(Kind.ERROR))
+			return;
 		Throwable e = WrapperException.unwrap(t);
 		String msg = formatMessage(String.format(message, args), e);
 		log(Kind.ERROR, msg, Arrays.asList((Object[])e.getStackTrace()));
@@ -341,6 +438,8 @@ public class Base {
 
 	@Ignore
 	public void error(String message, Object... args) {
+		if (!isLogEnabled(Kind.ERROR))
+			return;
 		String msg = formatMessage(String.format(message, args), null);
 		log(Kind.ERROR, msg, Collections.emptyList());
 	}
@@ -365,6 +464,8 @@ public class Base {
 	 */
 	@Ignore
 	public void entry(Object... args) {
+		if (!isLogEnabled(Kind.ENTRY))
+			return;
 		log(Kind.ENTRY, "method entry", Arrays.asList(args));
 	}
 
@@ -375,6 +476,8 @@ public class Base {
 	 */
 	@Ignore
 	public <T> T exit(T retval) {
+		if (!isLogEnabled(Kind.EXIT))
+			return retval;
 		log(Kind.EXIT, "method exit", Collections.singletonList(retval));
 		return retval;
 	}
@@ -0,0 +1,161 @@
+package org.mcv.app;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * @author Miguelc
+ *
+ * Finds the logged method (callee) and its caller for a log entry.
+ *
+ * Capturing the location is the most expensive part of logging, so how it is
+ * done is configurable (app.callerLocation):
+ * <ul>
+ * <li>FULL: fill in the whole stack trace and search it</li>
+ * <li>WALKER: walk only as many frames as needed with StackWalker; Java 9+,
+ * same as FULL on Java 8</li>
+ * <li>SAMPLED: locate one in app.callerLocation.sampleRate entries, with
+ * WALKER</li>
+ * <li>OFF: no location</li>
+ * </ul>
+ */
+public abstract class CallerLocation {
+
+	public enum Mode {
+		FULL, WALKER, SAMPLED, OFF
+	}
+
+	static final CallerLocation DEFAULT = of(Mode.FULL, 1);
+
+	// classes whose frames precede the logging method
+	private static final String PREFIX = CallerLocation.class.getName();
+	private static final String WALKER = CallerLocationWalker.class.getName();
+
+	final Mode mode;
+
+	CallerLocation(Mode mode) {
+		this.mode = mode;
+	}
+
+	/**
+	 * Location strategy.
+	 *
+	 * @param mode
+	 * @param sampleRate	for SAMPLED, locate one in sampleRate entries
+	 * @return strategy
+	 */
+	public static CallerLocation of(Mode mode, int sampleRate) {
+		switch (mode) {
+		case FULL:
+			return new Full(Mode.FULL);
+		case WALKER:
+			return new CallerLocationWalker();
+		case SAMPLED:
+			return new Sampled(new CallerLocationWalker(), sampleRate);
+		case OFF:
+		default:
+			return new Off();
+		}
+	}
+
+	/**
+	 * Callee and caller of the method calling this, skipping that method and
+	 * the one calling it (log and debug, say).
+	 *
+	 * @return {callee, caller}, or null if not located
+	 */
+	abstract StackTraceElement[] locate();
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	@Override
+	public String toString() {
+		return mode.toString();
+	}
+
+	static boolean isLocator(String className) {
+		return className.startsWith(PREFIX)
+				&& (className.length() == PREFIX.length()
+						|| className.charAt(PREFIX.length()) == '$'
+						|| className.equals(WALKER));
+	}
+
+	/**
+	 * Sets the location fields of a log entry.
+	 *
+	 * @param entry
+	 * @param location	{callee, caller}, or null
+	 */
+	static void set(LogEntry entry, StackTraceElement[] location) {
+		if (location == null) {
+			entry.setMethodLine(-1);
+			entry.setCallerLine(-1);
+			return;
+		}
+		StackTraceElement callee = location[0];
+		StackTraceElement caller = location[1];
+		entry.setCaller(SteUtils.cleanup(caller.getMethodName()));
+		entry.setCallerClass(SteUtils.cleanup(caller.getClassName()));
+		entry.setCallerLine(caller.getLineNumber());
+		entry.setMethod(SteUtils.cleanup(callee.getMethodName()));
+		entry.setMethodClass(SteUtils.cleanup(callee.getClassName()));
+		entry.setMethodLine(callee.getLineNumber());
+	}
+
+	static class Full extends CallerLocation {
+
+		Full(Mode mode) {
+			super(mode);
+		}
+
+		@Override
+		StackTraceElement[] locate() {
+			StackTraceElement[] elts = Thread.currentThread().getStackTrace();
+			// skip getStackTrace and our own frames
+			int start = 1;
+			while (start < elts.length && isLocator(elts[start].getClassName())) {
+				start++;
+			}
+			int[] indices = SteUtils.findCalleeAndCaller(elts, start + 2);
+			return new StackTraceElement[] { elts[indices[0]],
+					elts[indices[1]] };
+		}
+	}
+
+	static class Sampled extends CallerLocation {
+		private final CallerLocation delegate;
+		private final int rate;
+
+		Sampled(CallerLocation delegate, int rate) {
+			super(Mode.SAMPLED);
+			this.delegate = delegate;
+			this.rate = Math.max(1, rate);
+		}
+
+		@Override
+		StackTraceElement[] locate() {
+			if (ThreadLocalRandom.current().nextInt(rate) != 0) {
+				return null;
+			}
+			return delegate.locate();
+		}
+
+		@Override
+		public String toString() {
+			return mode + "(1/" + rate + ")";
+		}
+	}
+
+	static class Off extends CallerLocation {
+
+		Off() {
+			super(Mode.OFF);
+		}
+
+		@Override
+		StackTraceElement[] locate() {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,19 @@
+package org.mcv.app;
+
+/**
+ * @author Miguelc
+ *
+ * WALKER caller location. StackWalker needs Java 9; this Java 8 version falls
+ * back to the full stack trace. The Java 9 version is in src9 and is packaged
+ * in META-INF/versions/9 of the multi-release jar.
+ */
+class CallerLocationWalker extends CallerLocation.Full {
+
+	CallerLocationWalker() {
+		super(Mode.WALKER);
+	}
+
+	static boolean usesStackWalker() {
+		return false;
+	}
+}
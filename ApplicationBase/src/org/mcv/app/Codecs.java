@@ -0,0 +1,245 @@
+package org.mcv.app;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.Module;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+/**
+ * @author Miguelc
+ *
+ * JSON reader and writer per class, built once from the shared mapper.
+ *
+ * A typed reader or writer has its root (de)serializer looked up when it is
+ * built, instead of on every call, and reads Base subclasses as themselves
+ * rather than as maps. Base subclasses with a {@link JsonCodec} generated at
+ * compile time use it instead, unless app.json.codecs=false; proxies use the
+ * codec of their class. With app.json.afterburner=true and
+ * jackson-module-afterburner on the classpath, fields are accessed through
+ * generated bytecode instead of reflection.
+ */
+public class Codecs {
+
+	static final String AFTERBURNER = "com.fasterxml.jackson.module.afterburner.AfterburnerModule";
+
+	static volatile boolean useGenerated = true;
+	private static volatile boolean afterburnerRegistered;
+
+	// metrics
+	private static final AtomicLong built = new AtomicLong();
+	private static final AtomicLong generated = new AtomicLong();
+
+	private static final ClassValue<Codec> CODECS = new ClassValue<Codec>() {
+		@Override
+		protected Codec computeValue(Class<?> type) {
+			built.incrementAndGet();
+			return new Codec(Application.mapper.readerFor(type),
+					Application.mapper.writerFor(type), generated(type));
+		}
+	};
+
+	/**
+	 * Typed reader and writer, and the generated codec if there is one.
+	 */
+	static class Codec {
+		final ObjectReader reader;
+		final ObjectWriter writer;
+		final JsonCodec<Object> generated;
+
+		Codec(ObjectReader reader, ObjectWriter writer,
+				JsonCodec<Object> generated) {
+			this.reader = reader;
+			this.writer = writer;
+			this.generated = generated;
+		}
+	}
+
+	private Codecs() {
+	}
+
+	/**
+	 * Reads app.json.* settings and registers the modules found on the
+	 * classpath; Afterburner only if app.json.afterburner=true.
+	 *
+	 * @param mapper
+	 * @param props
+	 * @return whether Afterburner was registered
+	 */
+	static boolean configure(ObjectMapper mapper, Properties props) {
+		useGenerated = props.getProperty("app.json.codecs", "true").equals("true");
+		boolean afterburner = props.getProperty("app.json.afterburner",
+				"false").equals("true");
+		boolean registered = false;
+		for (Module module : ObjectMapper.findModules()) {
+			if (module.getClass().getName().equals(AFTERBURNER)) {
+				if (!afterburner) {
+					continue;
+				}
+				registered = true;
+			}
+			mapper.registerModule(module);
+		}
+		if (afterburner && !registered) {
+			try {
+				mapper.registerModule((Module) Class.forName(AFTERBURNER)
+						.newInstance());
+				registered = true;
+			} catch (Exception e) {
+				// not on the classpath, reported by isAfterburner
+			}
+		}
+		afterburnerRegistered = registered;
+		return registered;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static JsonCodec<Object> generated(Class<?> type) {
+		if (!useGenerated) {
+			return null;
+		}
+		for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+			try {
+				Class<?> codec = Class.forName(c.getName() + JsonCodec.SUFFIX,
+						true, c.getClassLoader());
+				generated.incrementAndGet();
+				return (JsonCodec<Object>) codec.getConstructor(
+						ObjectMapper.class).newInstance(Application.mapper);
+			} catch (ClassNotFoundException e) {
+				// only proxies (Xxx$$Proxetta, Xxx$$Woven) share the codec of their class
+				if (!c.getName().contains("$$")) {
+					return null;
+				}
+			} catch (ReflectiveOperationException e) {
+				throw new WrapperException(e);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Serializes an object.
+	 *
+	 * @param obj
+	 * @return JSON
+	 * @throws IOException
+	 */
+	static String toJson(Object obj) throws IOException {
+		Codec codec = CODECS.get(obj.getClass());
+		if (codec.generated == null) {
+			return codec.writer.writeValueAsString(obj);
+		}
+		StringWriter sw = new StringWriter(256);
+		try (JsonGenerator gen = Application.mapper.getFactory()
+				.createGenerator(sw)) {
+			codec.generated.write(gen, obj);
+		}
+		return sw.toString();
+	}
+
+	/**
+	 * Serializes an object to a generator of any format.
+	 *
+	 * @param gen
+	 * @param obj
+	 * @throws IOException
+	 */
+	static void write(JsonGenerator gen, Object obj) throws IOException {
+		Codec codec = CODECS.get(obj.getClass());
+		if (codec.generated == null) {
+			codec.writer.writeValue(gen, obj);
+		} else {
+			codec.generated.write(gen, obj);
+		}
+	}
+
+	/**
+	 * Deserializes into an existing object from a parser of any format,
+	 * positioned at the start of the object.
+	 *
+	 * @param p
+	 * @param obj
+	 * @return obj
+	 * @throws IOException
+	 */
+	static <T> T read(JsonParser p, T obj) throws IOException {
+		Codec codec = CODECS.get(obj.getClass());
+		if (codec.generated == null) {
+			return codec.reader.withValueToUpdate(obj).readValue(p);
+		}
+		codec.generated.read(p, obj);
+		return obj;
+	}
+
+	/**
+	 * Deserializes JSON into an existing object.
+	 *
+	 * @param json
+	 * @param obj
+	 * @return obj
+	 * @throws IOException
+	 */
+	static <T> T update(String json, T obj) throws IOException {
+		Codec codec = CODECS.get(obj.getClass());
+		if (codec.generated == null) {
+			return codec.reader.withValueToUpdate(obj).readValue(json);
+		}
+		try (JsonParser p = Application.mapper.getFactory().createParser(json)) {
+			codec.generated.read(p, obj);
+		}
+		return obj;
+	}
+
+	/**
+	 * Reader for a class.
+	 *
+	 * @param type
+	 * @return reader
+	 */
+	public static ObjectReader reader(Class<?> type) {
+		return CODECS.get(type).reader;
+	}
+
+	/**
+	 * Writer for a class.
+	 *
+	 * @param type
+	 * @return writer
+	 */
+	public static ObjectWriter writer(Class<?> type) {
+		return CODECS.get(type).writer;
+	}
+
+	/**
+	 * Is Afterburner registered?
+	 *
+	 * @return boolean
+	 */
+	public static boolean isAfterburner() {
+		return afterburnerRegistered;
+	}
+
+	/**
+	 * Number of codecs built so far.
+	 *
+	 * @return count
+	 */
+	public static long getBuilt() {
+		return built.get();
+	}
+
+	/**
+	 * Number of generated codecs in use.
+	 *
+	 * @return count
+	 */
+	public static long getGenerated() {
+		return generated.get();
+	}
+}
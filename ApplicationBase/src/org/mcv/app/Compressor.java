@@ -0,0 +1,340 @@
+package org.mcv.app;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+
+/**
+ * @author Miguelc
+ *
+ * Compresses stored objects and log entries above a size threshold, set by
+ * app.storage.compression (NONE, DEFLATE, LZ4) and
+ * app.storage.compression.threshold, or per class by <class>.compression and
+ * <class>.compression.threshold. Compressed rows are stored in the DATA and
+ * OBJDATA columns whatever their format, the algorithm in the high bits of
+ * FORMAT. A payload that does not get smaller is stored as it is.
+ */
+public class Compressor {
+
+	/**
+	 * Compression algorithm; the LZ4 one needs lz4-java on the classpath.
+	 */
+	public enum Algorithm {
+		NONE, DEFLATE, LZ4;
+
+		static Algorithm of(int code) {
+			return values()[code];
+		}
+	}
+
+	// bits of the FORMAT column: storage format, then algorithm
+	static final int FORMAT_BITS = 4;
+	static final int FORMAT_MASK = (1 << FORMAT_BITS) - 1;
+
+	// bounds of a stored original length: Deflate expands at most about
+	// 1032 times, LZ4 about 255 times
+	static final int MAX_LENGTH = 1 << 30;
+	static final int MAX_RATIO = 1032;
+
+	private static final ThreadLocal<Deflater> deflaters = ThreadLocal
+			.withInitial(Deflater::new);
+	private static final ThreadLocal<Inflater> inflaters = ThreadLocal
+			.withInitial(Inflater::new);
+
+	private final Properties props;
+	private volatile Setting defaults;
+	private final ConcurrentMap<String, Setting> overrides = new ConcurrentHashMap<>();
+	// per class, from overrides, config or defaults
+	private final ConcurrentMap<String, Setting> settings = new ConcurrentHashMap<>();
+
+	// metrics
+	private final AtomicLong compressed = new AtomicLong();
+	private final AtomicLong skipped = new AtomicLong();
+	private final AtomicLong bytesIn = new AtomicLong();
+	private final AtomicLong bytesOut = new AtomicLong();
+	private final AtomicLong compressNanos = new AtomicLong();
+	private final AtomicLong decompressed = new AtomicLong();
+	private final AtomicLong decompressNanos = new AtomicLong();
+
+	/**
+	 * Algorithm and threshold of a class.
+	 */
+	static class Setting {
+		final Algorithm algorithm;
+		final int threshold;
+
+		Setting(Algorithm algorithm, int threshold) {
+			this.algorithm = algorithm;
+			this.threshold = threshold;
+		}
+	}
+
+	Compressor(Properties props) {
+		this.props = props;
+		defaults = new Setting(Algorithm.valueOf(props.getProperty(
+				"app.storage.compression", "NONE")), Integer.parseInt(props
+				.getProperty("app.storage.compression.threshold", "1024")));
+	}
+
+	/**
+	 * Sets the algorithm and threshold of a class, overriding the
+	 * configuration.
+	 *
+	 * @param className	class, or null for the default of all classes
+	 * @param algorithm
+	 * @param threshold	minimum size to compress, in characters of JSON or bytes
+	 */
+	public void configure(String className, Algorithm algorithm, int threshold) {
+		Setting setting = new Setting(algorithm, threshold);
+		if (className == null) {
+			defaults = setting;
+			settings.clear();
+			settings.putAll(overrides);
+		} else {
+			overrides.put(className, setting);
+			settings.put(className, setting);
+		}
+	}
+
+	private Setting setting(String className) {
+		return settings.computeIfAbsent(className == null ? "" : className, c -> {
+			String algorithm = props.getProperty(c + ".compression");
+			String threshold = props.getProperty(c + ".compression.threshold");
+			if (algorithm == null && threshold == null) {
+				return defaults;
+			}
+			return new Setting(algorithm == null ? defaults.algorithm
+					: Algorithm.valueOf(algorithm), threshold == null
+					? defaults.threshold : Integer.parseInt(threshold));
+		});
+	}
+
+	/**
+	 * Sets the text, FORMAT and binary parameters of a payload, compressed if
+	 * the class asks for it and it is large enough.
+	 *
+	 * @param st
+	 * @param text		parameter index of the text column
+	 * @param format	parameter index of the FORMAT column
+	 * @param data		parameter index of the binary column
+	 * @param className	class the payload belongs to
+	 * @param payload
+	 * @throws SQLException
+	 */
+	void write(PreparedStatement st, int text, int format, int data,
+			String className, StorageFormat.Payload payload)
+			throws SQLException {
+		Setting setting = setting(className);
+		byte[] packed = null;
+		if (setting.algorithm != Algorithm.NONE
+				&& payload.size() >= setting.threshold) {
+			packed = compress(setting.algorithm,
+					payload.json != null ? payload.json
+							.getBytes(StandardCharsets.UTF_8) : payload.data);
+		}
+		if (packed != null) {
+			st.setString(text, null);
+			st.setInt(format, payload.format.code()
+					| setting.algorithm.ordinal() << FORMAT_BITS);
+			st.setBytes(data, packed);
+		} else {
+			st.setString(text, payload.json);
+			st.setInt(format, payload.format.code());
+			st.setBytes(data, payload.data);
+		}
+	}
+
+	/**
+	 * Serialized object as stored in a row, decompressed.
+	 *
+	 * @param rs
+	 * @param text	column of JSON text
+	 * @param data	column of binary formats and compressed rows
+	 * @return payload
+	 * @throws SQLException
+	 */
+	StorageFormat.Payload read(ResultSet rs, String text, String data)
+			throws SQLException {
+		// null (rows written before there was a FORMAT column) is 0: uncompressed JSON
+		int code = rs.getInt("FORMAT");
+		StorageFormat format = StorageFormat.of(code & FORMAT_MASK);
+		Algorithm algorithm = Algorithm.of(code >>> FORMAT_BITS);
+		if (algorithm != Algorithm.NONE) {
+			byte[] bytes = decompress(algorithm, rs.getBytes(data));
+			return format == StorageFormat.JSON ? new StorageFormat.Payload(
+					format, new String(bytes, StandardCharsets.UTF_8), null)
+					: new StorageFormat.Payload(format, null, bytes);
+		}
+		if (format == StorageFormat.JSON) {
+			return new StorageFormat.Payload(format, rs.getString(text), null);
+		}
+		return new StorageFormat.Payload(format, null, rs.getBytes(data));
+	}
+
+	/*
+	 * Original length, then the compressed bytes; null if not smaller.
+	 */
+	byte[] compress(Algorithm algorithm, byte[] bytes) {
+		long start = System.nanoTime();
+		byte[] out;
+		int n;
+		if (algorithm == Algorithm.LZ4) {
+			LZ4Compressor lz4 = LZ4Factory.fastestInstance().fastCompressor();
+			out = new byte[4 + lz4.maxCompressedLength(bytes.length)];
+			n = 4 + lz4.compress(bytes, 0, bytes.length, out, 4);
+		} else {
+			Deflater deflater = deflaters.get();
+			deflater.setInput(bytes);
+			deflater.finish();
+			out = new byte[4 + bytes.length];
+			n = 4;
+			while (!deflater.finished() && n < out.length) {
+				n += deflater.deflate(out, n, out.length - n);
+			}
+			boolean smaller = deflater.finished();
+			deflater.reset();
+			if (!smaller) {
+				n = out.length;
+			}
+		}
+		compressNanos.addAndGet(System.nanoTime() - start);
+		if (n >= bytes.length) {
+			skipped.incrementAndGet();
+			return null;
+		}
+		ByteBuffer.wrap(out).putInt(bytes.length);
+		compressed.incrementAndGet();
+		bytesIn.addAndGet(bytes.length);
+		bytesOut.addAndGet(n);
+		return Arrays.copyOf(out, n);
+	}
+
+	byte[] decompress(Algorithm algorithm, byte[] packed) {
+		long start = System.nanoTime();
+		try {
+			byte[] bytes = new byte[originalLength(packed)];
+			int n = 0;
+			if (algorithm == Algorithm.LZ4) {
+				n = LZ4Factory.fastestInstance().safeDecompressor().decompress(
+						packed, 4, packed.length - 4, bytes, 0);
+			} else {
+				Inflater inflater = inflaters.get();
+				try {
+					inflater.setInput(packed, 4, packed.length - 4);
+					while (n < bytes.length && !inflater.finished()) {
+						int k = inflater.inflate(bytes, n, bytes.length - n);
+						if (k == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+							break;
+						}
+						n += k;
+					}
+				} finally {
+					inflater.reset();
+				}
+			}
+			if (n != bytes.length) {
+				throw new DataFormatException(String.format(
+						"Compressed payload truncated: %d of %d bytes", n,
+						bytes.length));
+			}
+			decompressed.incrementAndGet();
+			decompressNanos.addAndGet(System.nanoTime() - start);
+			return bytes;
+		} catch (DataFormatException | RuntimeException e) {
+			throw new WrapperException(e);
+		}
+	}
+
+	/*
+	 * Stored original length, checked against what the compressed bytes
+	 * could expand to before it is allocated.
+	 */
+	private static int originalLength(byte[] packed) throws DataFormatException {
+		if (packed == null || packed.length < 4) {
+			throw new DataFormatException("Compressed payload without length");
+		}
+		int length = ByteBuffer.wrap(packed).getInt();
+		if (length < 0 || length > MAX_LENGTH
+				|| length > (long) (packed.length - 4) * MAX_RATIO + 64) {
+			throw new DataFormatException(String.format(
+					"Compressed payload of %d bytes cannot expand to %d",
+					packed.length, length));
+		}
+		return length;
+	}
+
+	/*
+	 * Metrics.
+	 */
+	public long getCompressed() {
+		return compressed.get();
+	}
+
+	public long getSkipped() {
+		return skipped.get();
+	}
+
+	public long getBytesIn() {
+		return bytesIn.get();
+	}
+
+	public long getBytesOut() {
+		return bytesOut.get();
+	}
+
+	public long getDecompressed() {
+		return decompressed.get();
+	}
+
+	/**
+	 * Compressed size of the compressed rows over their original size.
+	 *
+	 * @return ratio, 1 if nothing was compressed
+	 */
+	public double getRatio() {
+		long in = bytesIn.get();
+		return in == 0 ? 1.0 : (double) bytesOut.get() / in;
+	}
+
+	/**
+	 * Average time to compress a payload, including those that did not get
+	 * smaller.
+	 *
+	 * @return microseconds
+	 */
+	public double getCompressMicros() {
+		long n = compressed.get() + skipped.get();
+		return n == 0 ? 0 : compressNanos.get() / 1000.0 / n;
+	}
+
+	/**
+	 * Average time to decompress a payload.
+	 *
+	 * @return microseconds
+	 */
+	public double getDecompressMicros() {
+		long n = decompressed.get();
+		return n == 0 ? 0 : decompressNanos.get() / 1000.0 / n;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"Compressor(compressed=%d, skipped=%d, ratio=%.3f, compress=%.1fus, decompressed=%d, decompress=%.1fus)",
+				getCompressed(), getSkipped(), getRatio(), getCompressMicros(),
+				getDecompressed(), getDecompressMicros());
+	}
+}
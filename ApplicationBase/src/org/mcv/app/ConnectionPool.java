@@ -0,0 +1,246 @@
+package org.mcv.app;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author Miguelc
+ *
+ * Bounded pool of H2 connections.
+ *
+ * A thread that already holds a connection gets the same one back on a nested
+ * checkout, so logging from inside a query never needs a second connection.
+ */
+public class ConnectionPool {
+
+	private final String url;
+	private final int size;
+	private final long timeout;
+	private final int validationTimeout;
+	private final int statementCacheSize;
+
+	private final BlockingQueue<PooledConnection> idle;
+	private final Semaphore permits;
+	private final ThreadLocal<PooledConnection> held = new ThreadLocal<>();
+	private volatile boolean closed;
+
+	// metrics
+	private final AtomicLong checkouts = new AtomicLong();
+	private final AtomicLong waitNanos = new AtomicLong();
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+	private final AtomicLong timeouts = new AtomicLong();
+	private final AtomicLong opened = new AtomicLong();
+	private final AtomicLong invalidated = new AtomicLong();
+	private final AtomicLong statementHits = new AtomicLong();
+	private final AtomicLong statementMisses = new AtomicLong();
+	private final AtomicLong statementEvictions = new AtomicLong();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param url				JDBC url
+	 * @param size				maximum number of connections
+	 * @param timeout			maximum wait for a connection, in milliseconds
+	 * @param validationTimeout	health check timeout, in seconds
+	 * @param statementCacheSize	prepared statements cached per connection
+	 */
+	public ConnectionPool(String url, int size, long timeout,
+			int validationTimeout, int statementCacheSize) {
+		this.url = url;
+		this.size = size;
+		this.timeout = timeout;
+		this.validationTimeout = validationTimeout;
+		this.statementCacheSize = statementCacheSize;
+		this.idle = new ArrayBlockingQueue<>(size);
+		this.permits = new Semaphore(size, true);
+		// fail early on a bad url
+		idle.add(open());
+	}
+
+	/**
+	 * Checks out a connection. Close it to give it back.
+	 *
+	 * @return connection
+	 */
+	public PooledConnection checkout() {
+		PooledConnection pc = held.get();
+		if (pc != null && pc.owner == Thread.currentThread() && pc.depth > 0) {
+			pc.depth++;
+			return pc;
+		}
+		if (closed) {
+			throw new WrapperException(new SQLException("Connection pool is closed"));
+		}
+		long start = System.nanoTime();
+		try {
+			if (!permits.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+				timeouts.incrementAndGet();
+				throw new SQLException(String.format(
+						"No connection available after %d ms (pool size %d)",
+						timeout, size));
+			}
+		} catch (Exception e) {
+			throw new WrapperException(e);
+		}
+		recordWait(System.nanoTime() - start);
+		try {
+			pc = idle.poll();
+			if (pc != null && !pc.isValid(validationTimeout)) {
+				invalidated.incrementAndGet();
+				pc.destroy();
+				pc = null;
+			}
+			if (pc == null) {
+				pc = open();
+			}
+			pc.owner = Thread.currentThread();
+			pc.depth = 1;
+			held.set(pc);
+			return pc;
+		} catch (Exception e) {
+			permits.release();
+			throw new WrapperException(e);
+		}
+	}
+
+	/*
+	 * Called by PooledConnection.close().
+	 */
+	void release(PooledConnection pc) {
+		if (--pc.depth > 0) {
+			return;
+		}
+		pc.owner = null;
+		if (held.get() == pc) {
+			held.remove();
+		}
+		try {
+			if (!pc.getConnection().getAutoCommit()) {
+				pc.getConnection().rollback();
+				pc.getConnection().setAutoCommit(true);
+			}
+			if (closed || !idle.offer(pc)) {
+				pc.destroy();
+			}
+		} catch (Exception e) {
+			invalidated.incrementAndGet();
+			pc.destroy();
+		} finally {
+			permits.release();
+		}
+	}
+
+	private PooledConnection open() {
+		try {
+			Connection conn = DriverManager.getConnection(url, "", "");
+			opened.incrementAndGet();
+			return new PooledConnection(this, conn, statementCacheSize);
+		} catch (Exception e) {
+			throw new WrapperException(e);
+		}
+	}
+
+	private void recordWait(long nanos) {
+		checkouts.incrementAndGet();
+		waitNanos.addAndGet(nanos);
+		long max = maxWaitNanos.get();
+		while (nanos > max && !maxWaitNanos.compareAndSet(max, nanos)) {
+			max = maxWaitNanos.get();
+		}
+	}
+
+	void statementHit() {
+		statementHits.incrementAndGet();
+	}
+
+	void statementMiss() {
+		statementMisses.incrementAndGet();
+	}
+
+	void statementEvicted() {
+		statementEvictions.incrementAndGet();
+	}
+
+	/**
+	 * Closes all idle connections; busy ones are closed when released.
+	 */
+	public void close() {
+		closed = true;
+		PooledConnection pc;
+		while ((pc = idle.poll()) != null) {
+			pc.destroy();
+		}
+	}
+
+	/*
+	 * Metrics.
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	public int getIdle() {
+		return idle.size();
+	}
+
+	public int getActive() {
+		return size - permits.availablePermits();
+	}
+
+	public long getCheckouts() {
+		return checkouts.get();
+	}
+
+	public long getTimeouts() {
+		return timeouts.get();
+	}
+
+	public long getOpened() {
+		return opened.get();
+	}
+
+	public long getInvalidated() {
+		return invalidated.get();
+	}
+
+	public long getTotalWaitMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(waitNanos.get());
+	}
+
+	public long getMaxWaitMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get());
+	}
+
+	public double getAverageWaitMillis() {
+		long n = checkouts.get();
+		return n == 0 ? 0 : waitNanos.get() / 1e6 / n;
+	}
+
+	public long getStatementHits() {
+		return statementHits.get();
+	}
+
+	public long getStatementMisses() {
+		return statementMisses.get();
+	}
+
+	public long getStatementEvictions() {
+		return statementEvictions.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"ConnectionPool(size=%d, active=%d, idle=%d, checkouts=%d, timeouts=%d, opened=%d, invalidated=%d, avgWait=%.3fms, maxWait=%dms, statementHits=%d, statementMisses=%d, statementEvictions=%d)",
+				size, getActive(), getIdle(), getCheckouts(), getTimeouts(),
+				getOpened(), getInvalidated(), getAverageWaitMillis(),
+				getMaxWaitMillis(), getStatementHits(), getStatementMisses(),
+				getStatementEvictions());
+	}
+}
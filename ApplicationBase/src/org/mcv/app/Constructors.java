@@ -0,0 +1,141 @@
+package org.mcv.app;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.util.Arrays;
+
+/**
+ * @author Miguelc
+ *
+ * Constructors of Base subclasses, resolved once per class and argument types.
+ *
+ * A Base constructor takes (String name, Class clazz, ...) followed by
+ * arguments whose classes must match exactly. Resolved constructors are
+ * compiled to method handles and kept per class in a small array, so finding
+ * one again does not allocate.
+ */
+public class Constructors {
+
+	/**
+	 * Constructor for one list of argument types.
+	 */
+	static final class Factory {
+		final Class<?>[] types;
+		// (String, Class, Object[]) -> Base; null if there is no such constructor
+		final MethodHandle handle;
+
+		Factory(Class<?>[] types, MethodHandle handle) {
+			this.types = types;
+			this.handle = handle;
+		}
+
+		boolean matches(Object[] params) {
+			if (types.length != params.length) {
+				return false;
+			}
+			for (int i = 0; i < types.length; i++) {
+				if (types[i] != params[i].getClass()) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * New instance.
+		 *
+		 * @param name		object name
+		 * @param clazz		object class
+		 * @param params	additional constructor arguments
+		 * @return new object
+		 */
+		@SuppressWarnings("unchecked")
+		<T extends Base> T newInstance(String name, Class<?> clazz,
+				Object[] params) {
+			try {
+				return (T) (Base) handle.invokeExact(name, clazz, params);
+			} catch (RuntimeException | Error e) {
+				throw e;
+			} catch (Throwable t) {
+				throw new WrapperException(t);
+			}
+		}
+	}
+
+	/*
+	 * Factories of one class; copied on write.
+	 */
+	static final class Factories {
+		volatile Factory[] list = new Factory[0];
+	}
+
+	private static final ClassValue<Factories> FACTORIES = new ClassValue<Factories>() {
+		@Override
+		protected Factories computeValue(Class<?> type) {
+			return new Factories();
+		}
+	};
+
+	private Constructors() {
+	}
+
+	/**
+	 * Constructor of a class for some arguments.
+	 *
+	 * @param clazz		class
+	 * @param params	arguments after name and class
+	 * @return factory, null if the class has no matching constructor
+	 */
+	static Factory find(Class<?> clazz, Object[] params) {
+		Factories factories = FACTORIES.get(clazz);
+		for (Factory factory : factories.list) {
+			if (factory.matches(params)) {
+				return factory.handle != null ? factory : null;
+			}
+		}
+		return resolve(clazz, factories, params);
+	}
+
+	private static Factory resolve(Class<?> clazz, Factories factories,
+			Object[] params) {
+		synchronized (factories) {
+			for (Factory factory : factories.list) {
+				if (factory.matches(params)) {
+					return factory.handle != null ? factory : null;
+				}
+			}
+			Class<?>[] types = new Class<?>[params.length];
+			for (int i = 0; i < params.length; i++) {
+				types[i] = params[i].getClass();
+			}
+			Factory factory = new Factory(types, handle(clazz, types));
+			Factory[] list = Arrays.copyOf(factories.list,
+					factories.list.length + 1);
+			list[list.length - 1] = factory;
+			factories.list = list;
+			return factory.handle != null ? factory : null;
+		}
+	}
+
+	private static MethodHandle handle(Class<?> clazz, Class<?>[] types) {
+		Class<?>[] paramTypes = new Class<?>[types.length + 2];
+		paramTypes[0] = String.class;
+		paramTypes[1] = Class.class;
+		System.arraycopy(types, 0, paramTypes, 2, types.length);
+		for (Constructor<?> ctor : clazz.getConstructors()) {
+			if (Arrays.equals(ctor.getParameterTypes(), paramTypes)) {
+				try {
+					ctor.setAccessible(true);
+					MethodHandle mh = MethodHandles.lookup().unreflectConstructor(
+							ctor);
+					return mh.asType(mh.type().changeReturnType(Base.class))
+							.asSpreader(Object[].class, types.length);
+				} catch (IllegalAccessException e) {
+					throw new WrapperException(e);
+				}
+			}
+		}
+		return null;
+	}
+}
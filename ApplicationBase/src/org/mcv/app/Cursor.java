@@ -0,0 +1,110 @@
+package org.mcv.app;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * @author Miguelc
+ *
+ * Forward-only iterator over a query result. Rows are turned into objects only
+ * as they are pulled. Holds a pooled connection until closed, which happens
+ * automatically after the last row.
+ */
+public class Cursor<T> implements Iterator<T>, AutoCloseable {
+
+	/**
+	 * Turns the current row into an object.
+	 */
+	public interface RowMapper<T> {
+		T map(ResultSet rs) throws Exception;
+	}
+
+	private final PooledConnection conn;
+	private final PreparedStatement st;
+	private final ResultSet rs;
+	private final RowMapper<T> mapper;
+	private boolean fetched;
+	private boolean closed;
+
+	/**
+	 * Constructor. Takes ownership of connection, statement and result set.
+	 *
+	 * @param conn		connection
+	 * @param st		statement
+	 * @param rs		result set
+	 * @param mapper	row mapper
+	 */
+	Cursor(PooledConnection conn, PreparedStatement st, ResultSet rs,
+			RowMapper<T> mapper) {
+		this.conn = conn;
+		this.st = st;
+		this.rs = rs;
+		this.mapper = mapper;
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (closed) {
+			return false;
+		}
+		if (!fetched) {
+			try {
+				fetched = rs.next();
+			} catch (Exception e) {
+				close();
+				throw new WrapperException(e);
+			}
+			if (!fetched) {
+				close();
+			}
+		}
+		return fetched;
+	}
+
+	@Override
+	public T next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		fetched = false;
+		try {
+			return mapper.map(rs);
+		} catch (Exception e) {
+			close();
+			throw new WrapperException(e);
+		}
+	}
+
+	/**
+	 * Stream over the remaining rows; closing the stream closes the cursor.
+	 *
+	 * @return stream
+	 */
+	public Stream<T> stream() {
+		return StreamSupport.stream(
+				Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED),
+				false).onClose(this::close);
+	}
+
+	@Override
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			rs.close();
+			st.close();
+		} catch (Exception e) {
+			// ignore
+		} finally {
+			conn.close();
+		}
+	}
+}
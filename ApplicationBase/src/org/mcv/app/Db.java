@@ -1,25 +1,46 @@
 package org.mcv.app;
 
-import java.lang.reflect.Constructor;
-import java.sql.Connection;
-import java.sql.DriverManager;
+import java.io.File;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Stream;
 
 import lombok.Cleanup;
 
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectReader;
+
 public class Db {
 
-	private Connection conn;
+	private ConnectionPool pool;
+	private LogWriter logWriter;
+	private LogJournal journal;
+	private StackStore stacks;
+	private final ObjectReader childrenReader = Application.mapper
+			.readerFor(CHILDREN_TYPE);
+	private WriteBehind writeBehind;
+	private int fetchSize;
+	private StorageFormat format;
+	private Compressor compressor;
 	private Application app;
+	// striped: a fixed number of monitors, whatever the number of objects
+	private static final int LOCK_STRIPES = 256;
+	private final Object[] locks = new Object[LOCK_STRIPES];
+	// fingerprint of the JSON of each object's current row, assuming this Db is its only writer
+	private final ConcurrentMap<String, Fingerprint> fingerprints = new ConcurrentHashMap<>();
+	private final VersionAllocator versions = new VersionAllocator(this::lastNumber);
 
 	/**
 	 * Initializes H2 database.
@@ -29,30 +50,180 @@ public class Db {
 	 */
 	public Db(Application app, String name) {
 		this.app = app;
-		conn = getConnection(name);
+		for (int i = 0; i < LOCK_STRIPES; i++) {
+			locks[i] = new Object();
+		}
+		pool = createPool(name);
+		stacks = new StackStore(pool);
+		Properties props = app.getProps();
+		fetchSize = Integer.parseInt(props.getProperty("h2.fetchSize", "100"));
+		format = StorageFormat.valueOf(props.getProperty("app.storage.format", "JSON"));
+		compressor = new Compressor(props);
+		if (props.getProperty("app.logs.async", "false").equals("true")) {
+			logWriter = new LogWriter(this, name,
+					Integer.parseInt(props.getProperty("app.logs.queueSize", "10000")),
+					Integer.parseInt(props.getProperty("app.logs.batchSize", "100")),
+					Long.parseLong(props.getProperty("app.logs.lingerMillis", "200")));
+		}
+		String journalDir = props.getProperty("app.logs.journal", "");
+		if (!journalDir.isEmpty()) {
+			journal = new LogJournal(new File(journalDir), name,
+					Integer.parseInt(props.getProperty("app.logs.journal.segmentSize", "67108864")),
+					LogEntry.Kind.valueOf(props.getProperty("app.logs.journal.level", "DEBUG")));
+		}
+		if (props.getProperty("app.writeBehind", "false").equals("true")) {
+			setWriteBehind(Long.parseLong(props.getProperty(
+					"app.writeBehind.maxStalenessMillis", "1000")));
+		}
 	}
 
-	private Connection getConnection(String name) {
+	private ConnectionPool createPool(String name) {
 		String connString = "";
 		try {
 			Class.forName("org.h2.Driver");
-			String format = app.getProps()
-					.getProperty("h2.url", "jdbc:h2:./%s");
+			Properties props = app.getProps();
+			String format = props.getProperty("h2.url", "jdbc:h2:./%s");
 			connString = String.format(format, name);
-			Connection conn = DriverManager.getConnection(connString, "", "");
-			return conn;
+			return new ConnectionPool(connString,
+					Integer.parseInt(props.getProperty("h2.pool.size", "8")),
+					Long.parseLong(props.getProperty("h2.pool.timeout", "30000")),
+					Integer.parseInt(props.getProperty("h2.pool.validationTimeout", "2")),
+					Integer.parseInt(props.getProperty("h2.pool.statementCacheSize", "64")));
 		} catch (Exception e) {
 			app.log.error(e, "Error connecting to DB: %s", connString);
 			throw new WrapperException(e);
 		}
 	}
 
+	/*
+	 * Application log, for the background writers.
+	 */
+	Base log() {
+		return app.log;
+	}
+
+	/**
+	 * Connection pool, for metrics.
+	 * 
+	 * @return pool
+	 */
+	public ConnectionPool getPool() {
+		return pool;
+	}
+
+	/**
+	 * Asynchronous log writer, for metrics.
+	 * 
+	 * @return log writer, or null if logs are written synchronously
+	 */
+	public LogWriter getLogWriter() {
+		return logWriter;
+	}
+
+	/**
+	 * Binary log journal.
+	 * 
+	 * @return journal, or null if not configured
+	 */
+	public LogJournal getJournal() {
+		return journal;
+	}
+
 	/**
-	 * Closes DB connection.
+	 * Stack traces of WARN and ERROR entries.
+	 * 
+	 * @return stack store
+	 */
+	public StackStore getStackStore() {
+		return stacks;
+	}
+
+	/**
+	 * Format new rows are written in.
+	 * 
+	 * @return format
+	 */
+	public StorageFormat getStorageFormat() {
+		return format;
+	}
+
+	/**
+	 * Switches the format new rows are written in; existing rows are read in
+	 * the format they were written in.
+	 * 
+	 * @param format
+	 */
+	public void setStorageFormat(StorageFormat format) {
+		this.format = format;
+		fingerprints.clear();
+	}
+
+	/**
+	 * Compression of stored objects and log entries, for settings and metrics.
+	 * 
+	 * @return compressor
+	 */
+	public Compressor getCompressor() {
+		return compressor;
+	}
+
+	/**
+	 * Write-behind, for metrics.
+	 * 
+	 * @return write-behind, or null if objects are stored synchronously
+	 */
+	public WriteBehind getWriteBehind() {
+		return writeBehind;
+	}
+
+	/**
+	 * Switches write-behind mode on or off.
+	 * 
+	 * @param maxStalenessMillis
+	 *            maximum delay before a change is stored, 0 to store
+	 *            synchronously
+	 */
+	public synchronized void setWriteBehind(long maxStalenessMillis) {
+		if (writeBehind != null) {
+			writeBehind.close();
+			writeBehind = null;
+		}
+		if (maxStalenessMillis > 0) {
+			writeBehind = new WriteBehind(this, app.getName(),
+					maxStalenessMillis);
+		}
+	}
+
+	/**
+	 * Writes all pending changes.
+	 */
+	public void flush() {
+		if (writeBehind != null) {
+			writeBehind.flush();
+		}
+		if (logWriter != null) {
+			logWriter.flush();
+		}
+	}
+
+	/**
+	 * Closes DB connections.
 	 */
 	public void close() {
 		try {
-			conn.close();
+			try {
+				if (writeBehind != null) {
+					writeBehind.close();
+				}
+			} finally {
+				if (logWriter != null) {
+					logWriter.close();
+				}
+				if (journal != null) {
+					journal.close();
+				}
+				pool.close();
+			}
 		} catch (Exception e) {
 			app.log.error(e, "Error disconnecting from DB");
 			throw new WrapperException(e);
@@ -60,97 +231,105 @@ public class Db {
 	}
 
 	/*
-	 * Create tables
+	 * Writers of the same object are serialized; writers of different objects
+	 * only when their keys share a stripe.
 	 */
-	static String[] recordSpec = new String[] { "NAME", "CLASSNAME", "VERSION",
-			"PARENT", "CHILDREN", "CREATED", "CURRENT", "DELETED", "JSON" };
-
-	static String[] typeSpec = new String[] { "nvarchar(1024)", // NAME
-			"nvarchar(1024)", // CLASSNAME
-			"long", // VERSION
-			"long", // PARENT
-			"nvarchar(1024)", // CHILDREN
-			"timestamp", // CREATED
-			"boolean", // CURRENT
-			"boolean", // DELETED
-			"clob", // JSON
-	};
+	private Object lockFor(Base base) {
+		int h = key(base).hashCode();
+		return locks[(h ^ (h >>> 16)) & (LOCK_STRIPES - 1)];
+	}
 
-	private static String typeSpec() {
-		StringBuilder sb = new StringBuilder();
-		for (int i = 0; i < typeSpec.length; i++) {
-			sb.append(recordSpec[i]).append(" ").append(typeSpec[i])
-					.append(",").append("\r\n");
-		}
-		return sb.toString();
+	static String key(Base base) {
+		return key(base.getClazz().getCanonicalName(), base.getName());
+	}
+
+	static String key(String className, String name) {
+		return className + "." + name;
 	}
 
+	/*
+	 * Columns written by the inserts; the tables are created by Schema
+	 */
+	static String[] recordSpec = new String[] { "NAME", "CLASSNAME", "VERSION",
+			"PARENT", "CHILDREN", "CREATED", "CURRENT", "DELETED", "JSON",
+			"FORMAT", "DATA" };
+
 	static String[] recordSpecLogs = new String[] { "NAME", "CLASSNAME",
 			"STAMP", "THREAD", "METHOD", "METHODLINE", "METHODCLASS", "CALLER",
-			"CALLERLINE", "CALLERCLASS", "KIND", "OBJLIST", "MESSAGE" };
-
-	static String[] typeSpecLogs = new String[] { "nvarchar(1024)", // NAME
-			"nvarchar(1024)", // CLASSNAME
-			"timestamp", // STAMP
-			"nvarchar(256)", // THREAD
-			"nvarchar(256)", // METHOD
-			"integer", // METHODLINE
-			"nvarchar(256)", // METHODCLASS
-			"nvarchar(256)", // CALLER
-			"integer", // CALLERLINE
-			"nvarchar(256)", // CALLERCLASS
-			"integer", // KIND
-			"clob", // OBJLIST
-			"nvarchar(1024)" // MESSAGE
-	};
+			"CALLERLINE", "CALLERCLASS", "KIND", "OBJLIST", "MESSAGE", "STACKHASH",
+			"FORMAT", "OBJDATA" };
 
-	private static String typeSpecLogs() {
-		StringBuilder sb = new StringBuilder();
-		for (int i = 0; i < typeSpecLogs.length; i++) {
-			sb.append(recordSpecLogs[i]).append(" ").append(typeSpecLogs[i])
-					.append(",").append("\r\n");
-		}
-		return sb.toString();
-	}
-
-	public void createAppTable() {
+	/**
+	 * Creates or upgrades all tables and indexes.
+	 * 
+	 * @return schema version
+	 */
+	public int migrate() {
 		try {
 			@Cleanup
-			PreparedStatement st = conn
-					.prepareStatement("CREATE TABLE IF NOT EXISTS APPLICATION ("
-							+ typeSpec()
-							+ "PRIMARY KEY (NAME, CLASSNAME, VERSION) )");
-			st.executeUpdate();
+			PooledConnection conn = pool.checkout();
+			for (Schema.Migration migration : Schema.migrate(conn)) {
+				app.log.info("Applied schema version %d: %s",
+						migration.version, migration.description);
+			}
+			return Schema.version(conn);
 		} catch (Exception e) {
-			app.log.error(e, "Error creating APPLICATION table");
+			app.log.error(e, "Error migrating schema");
 			throw new WrapperException(e);
 		}
 	}
 
-	public void createLogsTable() {
+	/**
+	 * Schema version of the database.
+	 * 
+	 * @return version
+	 */
+	public int getSchemaVersion() {
 		try {
 			@Cleanup
-			PreparedStatement st = conn
-					.prepareStatement("CREATE TABLE IF NOT EXISTS LOGS ("
-							+ typeSpecLogs() + ")");
-			st.executeUpdate();
+			PooledConnection conn = pool.checkout();
+			return Schema.version(conn);
 		} catch (Exception e) {
-			app.log.error(e, "Error creating LOGS table");
 			throw new WrapperException(e);
 		}
 	}
 
+	/**
+	 * Creates the tables: same as {@link #migrate()}, which owns the schema.
+	 */
+	public void createAppTable() {
+		migrate();
+	}
+
+	/**
+	 * Creates the tables: same as {@link #migrate()}, which owns the schema.
+	 */
+	public void createLogsTable() {
+		migrate();
+	}
+
 	/**
 	 * Clears database.
 	 */
 	public void clear() {
+		flush();
+		fingerprints.clear();
+		versions.clear();
+		app.identities.clear();
 		try {
+			@Cleanup
+			PooledConnection conn = pool.checkout();
 			@Cleanup
 			PreparedStatement st = conn
 					.prepareStatement("DELETE FROM APPLICATION");
 			st.executeUpdate();
+			st.close();
 			st = conn.prepareStatement("DELETE FROM LOGS");
 			st.executeUpdate();
+			st.close();
+			st = conn.prepareStatement("DELETE FROM STACKS");
+			st.executeUpdate();
+			stacks.clear();
 		} catch (Exception e) {
 			app.log.error(e, "Error clearing DB");
 			throw new WrapperException(e);
@@ -166,13 +345,23 @@ public class Db {
 					.format("DELETE FROM APPLICATION WHERE CREATED < TIMESTAMPADD('DAY', -%d, NOW()) AND (CURRENT = false OR DELETED = true)",
 							days);
 			@Cleanup
+			PooledConnection conn = pool.checkout();
+			@Cleanup
 			PreparedStatement st = conn.prepareStatement(sql);
 			st.executeUpdate();
+			st.close();
 			sql = String
 					.format("DELETE FROM LOGS WHERE CREATED < TIMESTAMPADD('DAY', -%d, NOW())",
 							days);
 			st = conn.prepareStatement(sql);
 			st.executeUpdate();
+			st.close();
+			sql = String
+					.format("DELETE FROM STACKS WHERE LASTSEEN < TIMESTAMPADD('DAY', -%d, NOW())",
+							days);
+			st = conn.prepareStatement(sql);
+			st.executeUpdate();
+			stacks.clear();
 		} catch (Exception e) {
 			app.log.error(e, "Error cleaning DB");
 			throw new WrapperException(e);
@@ -182,61 +371,248 @@ public class Db {
 	/*
 	 * Create new version based on previous.
 	 */
-	synchronized <T extends Base> T newVersion(T obj) {
+	<T extends Base> T newVersion(T obj) {
+		synchronized (lockFor(obj)) {
+			return newVersionLocked(obj);
+		}
+	}
+
+	/*
+	 * Version fields of an object, to put back when its new version is
+	 * rolled back.
+	 */
+	static class Snapshot {
+		final Base obj;
+		final long version;
+		final long parent;
+		final List<Long> children;
+		final List<Long> childrenBefore;
+		final LocalDateTime created;
+		final String json;
+		final StorageFormat.Payload stored;
+		final boolean inBatch;
+
+		Snapshot(Base obj) {
+			this.obj = obj;
+			version = obj.version;
+			parent = obj.parent;
+			children = obj.children;
+			childrenBefore = children != null ? new ArrayList<>(children) : null;
+			created = obj.created;
+			json = obj.json;
+			stored = obj.stored;
+			inBatch = obj.inBatch;
+		}
+
+		void restore() {
+			if (children != null) {
+				children.clear();
+				children.addAll(childrenBefore);
+			}
+			obj.version = version;
+			obj.parent = parent;
+			obj.children = children;
+			obj.created = created;
+			obj.json = json;
+			obj.stored = stored;
+			obj.inBatch = inBatch;
+		}
+	}
+
+	private <T extends Base> T newVersionLocked(T obj) {
+		long version = obj.version;
+		List<Long> children = obj.children;
+		Snapshot snapshot = new Snapshot(obj);
 		try {
 			app.log.entry(obj);
+			return app.log.exit(inTransaction(conn -> {
+				// create new version
+				obj.current = true;
+				obj.children = new LinkedList<Long>();
+				obj.created = LocalDateTime.now();
+				obj.deleted = obj.isDeleted();
+				obj.parent = version;
+				insertVersion(obj);
 
-			// adjust current object
-			long nextNumber = nextNumber(obj);
-			obj.current = false;
-			obj.children.add(nextNumber);
-			Map<String, Object> map = Application.fromJson(obj.getJson(),
-					new HashMap<String, Object>());
-			map.put("current", false);
-			map.put("children", obj.children);
-			obj.json = Application.toJson(map);
-			update(obj, false, obj.children, obj.json);
-
-			// create new version
-			obj.current = true;
-			obj.children = new LinkedList<Long>();
-			obj.created = LocalDateTime.now();
-			obj.deleted = obj.isDeleted();
-			obj.parent = obj.getVersion();
-			obj.version = nextNumber;
-			obj.json = Application.toJson(obj);
-
-			newRecord(obj);
-			return app.log.exit(obj);
+				// adjust previous version: the JSON of a version never changes,
+				// CURRENT and CHILDREN columns take precedence over it
+				children.add(obj.version);
+				update(obj, version, false, children);
+				return obj;
+			}));
 		} catch (Exception e) {
+			// back to the state before
+			versions.reset(obj);
+			snapshot.restore();
+			fingerprints.remove(key(obj));
 			app.log.error(e, "Error creating new version for object %s",
 					obj.getName());
 			throw new WrapperException(e);
 		}
 	}
 
+	/*
+	 * Insert with the next version number. A duplicate key means the
+	 * version counter is behind the database: reload it and retry once.
+	 */
+	private void insertVersion(Base obj) {
+		for (int attempt = 1;; attempt++) {
+			obj.version = nextNumber(obj);
+			encode(obj);
+			try {
+				newRecord(obj);
+				return;
+			} catch (WrapperException e) {
+				if (attempt > 1 || !isDuplicateKey(e)) {
+					throw e;
+				}
+				app.log.warn("Version %d of %s already exists, reloading version counter",
+						obj.version, key(obj));
+				versions.reset(obj);
+			}
+		}
+	}
+
+	/*
+	 * Serialize in the storage format. Text JSON is kept as the object's JSON,
+	 * a binary format as its stored row, from which the JSON is derived if needed.
+	 */
+	void encode(Base obj) {
+		StorageFormat.Payload payload = format.encode(obj);
+		obj.json = payload.json;
+		obj.stored = payload.json != null ? null : payload;
+	}
+
+	private static StorageFormat.Payload payload(Base obj) {
+		return obj.stored != null ? obj.stored : new StorageFormat.Payload(
+				StorageFormat.JSON, obj.json, null);
+	}
+
+	static boolean isDuplicateKey(Throwable e) {
+		Throwable t = WrapperException.unwrap(e);
+		return t instanceof SQLException
+				&& "23505".equals(((SQLException) t).getSQLState());
+	}
+
+	/*
+	 * Unit of work on a connection.
+	 */
+	interface Work<R> {
+		R run(PooledConnection conn) throws Exception;
+	}
+
+	/*
+	 * Runs work in a transaction, or as part of the transaction the
+	 * calling thread already has open.
+	 */
+	private <R> R inTransaction(Work<R> work) {
+		try {
+			@Cleanup
+			PooledConnection conn = pool.checkout();
+			boolean autoCommit = conn.getConnection().getAutoCommit();
+			if (autoCommit) {
+				conn.getConnection().setAutoCommit(false);
+			}
+			try {
+				R ret = work.run(conn);
+				if (autoCommit) {
+					conn.getConnection().commit();
+				}
+				return ret;
+			} catch (Exception e) {
+				if (autoCommit) {
+					conn.getConnection().rollback();
+				}
+				throw e;
+			} finally {
+				if (autoCommit) {
+					conn.getConnection().setAutoCommit(true);
+				}
+			}
+		} catch (Exception e) {
+			throw new WrapperException(e);
+		}
+	}
+
 	/**
 	 * Updates record in DB. Update existing version, create new version, store.
+	 * In write-behind mode the object is queued instead.
 	 * 
 	 * @param base
 	 */
 	public <T extends Base> void store(T base) {
+		WriteBehind wb = writeBehind;
+		if (wb != null && base.isCurrent() && !base.isDeleted()) {
+			wb.enqueue(base);
+			return;
+		}
 		if (willStore(base)) {
 			newVersion(base);
 			base.inBatch = false;
 		}
 	}
 
+	/*
+	 * Store a batch of objects in one transaction.
+	 */
+	int storeAll(List<Base> batch) {
+		// the whole batch is rolled back if one fails, so all are put back
+		List<Snapshot> snapshots = new ArrayList<>(batch.size());
+		for (Base base : batch) {
+			snapshots.add(new Snapshot(base));
+		}
+		try {
+			return inTransaction(conn -> {
+				int n = 0;
+				for (Base base : batch) {
+					if (willStore(base)) {
+						newVersion(base);
+						base.inBatch = false;
+						n++;
+					}
+				}
+				return n;
+			});
+		} catch (Exception e) {
+			for (Snapshot snapshot : snapshots) {
+				snapshot.restore();
+				fingerprints.remove(key(snapshot.obj));
+				versions.reset(snapshot.obj);
+			}
+			throw e;
+		}
+	}
+
 	/*
 	 * Special case: deleted object.
 	 */
 	<T extends Base> void storeDeleted(T base) {
+		if (writeBehind != null) {
+			writeBehind.discard(base);
+		}
 		if (base.isCurrent()) {
 			newVersion(base);
 			base.inBatch = false;
 		}
 	}
 
+	/*
+	 * Pending write-behind changes must be visible to readers.
+	 */
+	private void flushPending(Class<?> clazz, String name) {
+		WriteBehind wb = writeBehind;
+		if (wb != null) {
+			wb.flush(key(clazz.getCanonicalName(), name));
+		}
+	}
+
+	private void flushPending() {
+		WriteBehind wb = writeBehind;
+		if (wb != null) {
+			wb.flush();
+		}
+	}
+
 	/**
 	 * Is object storeable?
 	 * 
@@ -251,6 +627,10 @@ public class Db {
 	 * Has anything changed?
 	 */
 	private <T extends Base> boolean anythingChanged(T obj) {
+		Fingerprint fingerprint = fingerprints.get(key(obj));
+		if (fingerprint != null) {
+			return !fingerprint.equals(format.encode(obj).fingerprint());
+		}
 		@SuppressWarnings("unchecked")
 		Base stored = retrieve(obj.getName(),
 				(Class<? extends T>) obj.getClazz(), true);
@@ -264,16 +644,20 @@ public class Db {
 	 */
 	void newRecord(Base record) {
 		try {
+			@Cleanup
+			PooledConnection conn = pool.checkout();
 			@Cleanup
 			PreparedStatement st = conn
-					.prepareStatement("INSERT INTO APPLICATION ("
-							+ insertSpec(recordSpec) + ") VALUES ("
-							+ questionMarks(recordSpec) + ")");
+					.prepareStatement(INSERT_APPLICATION);
 			prepare(st, record);
 			int n = st.executeUpdate();
 			if (n != 1) {
 				throw new Exception("More or less than 1 record inserted: " + n);
 			}
+			if (record.isCurrent()) {
+				fingerprints.put(key(record), payload(record).fingerprint());
+			}
+			versions.observe(record, record.getVersion());
 		} catch (Exception e) {
 			throw new WrapperException(e);
 		}
@@ -282,19 +666,19 @@ public class Db {
 	/*
 	 * Adjust existing record in DB.
 	 */
-	void update(Base record, boolean current, List<Long> children, String json) {
+	void update(Base record, long version, boolean current, List<Long> children) {
 		try {
+			@Cleanup
+			PooledConnection conn = pool.checkout();
 			@Cleanup
 			PreparedStatement st = conn
-					.prepareStatement("UPDATE APPLICATION SET CURRENT = ?, "
-							+ " CHILDREN = ?, JSON = ? "
+					.prepareStatement("UPDATE APPLICATION SET CURRENT = ?, CHILDREN = ? "
 							+ "WHERE NAME=? AND CLASSNAME = ? AND VERSION = ?");
 			st.setBoolean(1, current);
 			st.setString(2, Application.toJson(children));
-			st.setString(3, json);
-			st.setString(4, record.getName());
-			st.setString(5, record.getClazz().getCanonicalName());
-			st.setLong(6, record.getVersion());
+			st.setString(3, record.getName());
+			st.setString(4, record.getClazz().getCanonicalName());
+			st.setLong(5, version);
 			int n = st.executeUpdate();
 			if (n != 1) {
 				throw new Exception("More or less than 1 record updated: " + n);
@@ -308,13 +692,17 @@ public class Db {
 	 * Adjust 'current' flag in DB.
 	 */
 	void updateCurrent(Base record) {
+		fingerprints.remove(key(record));
 		try {
+			@Cleanup
+			PooledConnection conn = pool.checkout();
 			@Cleanup
 			PreparedStatement st = conn
 					.prepareStatement("UPDATE APPLICATION SET CURRENT = false WHERE NAME = ? AND CLASSNAME = ?");
 			st.setString(1, record.getName());
 			st.setString(2, record.getClazz().getCanonicalName());
 			st.executeUpdate();
+			st.close();
 
 			st = conn.prepareStatement("UPDATE APPLICATION SET CURRENT = true "
 					+ "WHERE NAME=? AND CLASSNAME = ? AND VERSION = ?");
@@ -333,6 +721,9 @@ public class Db {
 	/**
 	 * Helper functions.
 	 */
+	private static final TypeReference<LinkedList<Long>> CHILDREN_TYPE = new TypeReference<LinkedList<Long>>() {
+	};
+
 	private static String questionMarks(String[] spec) {
 		StringBuilder sb = new StringBuilder();
 		for (int i = 0; i < spec.length; i++) {
@@ -344,6 +735,15 @@ public class Db {
 		return sb.toString();
 	}
 
+	// built once, so the statement cache sees the same SQL every time
+	static final String INSERT_APPLICATION = "INSERT INTO APPLICATION ("
+			+ insertSpec(recordSpec) + ") VALUES (" + questionMarks(recordSpec)
+			+ ")";
+
+	static final String INSERT_LOGS = "INSERT INTO LOGS ("
+			+ insertSpec(recordSpecLogs) + ") VALUES ("
+			+ questionMarks(recordSpecLogs) + ")";
+
 	private static String insertSpec(String[] spec) {
 		StringBuilder sb = new StringBuilder();
 		for (int i = 0; i < spec.length; i++) {
@@ -366,7 +766,8 @@ public class Db {
 			st.setTimestamp(i++, Timestamp.valueOf(record.getCreated()));
 			st.setBoolean(i++, record.isCurrent());
 			st.setBoolean(i++, record.isDeleted());
-			st.setString(i++, record.getJson());
+			compressor.write(st, i, i + 1, i + 2, record.getClazz()
+					.getCanonicalName(), payload(record));
 		} catch (Exception e) {
 			throw new WrapperException(e);
 		}
@@ -374,6 +775,112 @@ public class Db {
 
 	/* Retrieve records */
 
+	static final String SELECT_CURRENT = "SELECT * FROM APPLICATION WHERE NAME = ? AND CLASSNAME = ? AND CURRENT = TRUE AND DELETED = false";
+
+	static final String SELECT_VERSION = "SELECT * FROM APPLICATION WHERE NAME = ? AND CLASSNAME = ? AND VERSION = ?";
+
+	static final String SELECT_LAST_NUMBER = "SELECT MAX(VERSION) AS HIGHEST FROM APPLICATION WHERE NAME = ? AND CLASSNAME = ?";
+
+	static final String SELECT_LIST = "SELECT * FROM APPLICATION WHERE CLASSNAME = ? AND CURRENT = TRUE AND DELETED = false ORDER BY NAME";
+
+	static final String SELECT_VERSIONS = "SELECT * FROM APPLICATION WHERE NAME = ? AND CLASSNAME = ? ORDER BY VERSION";
+
+	static final String SELECT_LOGS = "SELECT * FROM LOGS WHERE NAME = ? AND CLASSNAME = ? ORDER BY STAMP";
+
+	static final String SELECT_ALL_LOGS = "SELECT * FROM LOGS ORDER BY STAMP";
+
+	static final String SELECT_LIST_FIRST = "SELECT * FROM APPLICATION WHERE CLASSNAME = ? AND CURRENT = TRUE AND DELETED = false ORDER BY NAME LIMIT ?";
+
+	static final String SELECT_LIST_AFTER = "SELECT * FROM APPLICATION WHERE CLASSNAME = ? AND CURRENT = TRUE AND DELETED = false AND NAME > ? ORDER BY NAME LIMIT ?";
+
+	static final String SELECT_VERSIONS_AFTER = "SELECT * FROM APPLICATION WHERE NAME = ? AND CLASSNAME = ? AND VERSION > ? ORDER BY VERSION LIMIT ?";
+
+	// STAMP >= ? is the index range, the OR only filters entries with the same stamp
+	static final String SELECT_LOGS_AFTER = "SELECT * FROM LOGS WHERE NAME = ? AND CLASSNAME = ? AND STAMP >= ? AND STAMP < ? "
+			+ "AND (STAMP > ? OR SEQ > ?) ORDER BY STAMP, SEQ LIMIT ?";
+
+	/**
+	 * Queries by name, for explain().
+	 */
+	static final Map<String, String> QUERIES = new LinkedHashMap<>();
+	static {
+		QUERIES.put("retrieve", SELECT_CURRENT);
+		QUERIES.put("retrieveVersion", SELECT_VERSION);
+		QUERIES.put("lastNumber", SELECT_LAST_NUMBER);
+		QUERIES.put("getList", SELECT_LIST);
+		QUERIES.put("getVersions", SELECT_VERSIONS);
+		QUERIES.put("getLogs", SELECT_LOGS);
+		QUERIES.put("getAllLogs", SELECT_ALL_LOGS);
+		QUERIES.put("getListPage", SELECT_LIST_AFTER);
+		QUERIES.put("getVersionsPage", SELECT_VERSIONS_AFTER);
+		QUERIES.put("getLogsPage", SELECT_LOGS_AFTER);
+	}
+
+	/**
+	 * Query plans of the Db queries.
+	 * 
+	 * @return plan per query
+	 */
+	public Map<String, String> explain() {
+		Map<String, String> plans = new LinkedHashMap<>();
+		try {
+			@Cleanup
+			PooledConnection conn = pool.checkout();
+			for (Map.Entry<String, String> query : QUERIES.entrySet()) {
+				@Cleanup
+				PreparedStatement st = conn.getConnection().prepareStatement(
+						"EXPLAIN " + query.getValue());
+				// any value will do, "0" converts to both text and numbers
+				int n = st.getParameterMetaData().getParameterCount();
+				for (int i = 1; i <= n; i++) {
+					st.setString(i, "0");
+				}
+				@Cleanup
+				ResultSet rs = st.executeQuery();
+				plans.put(query.getKey(), rs.next() ? rs.getString(1) : "");
+			}
+			return plans;
+		} catch (Exception e) {
+			app.log.error(e, "Error explaining queries");
+			throw new WrapperException(e);
+		}
+	}
+
+	/**
+	 * Indexes on the Db tables.
+	 * 
+	 * @return list of TABLE.INDEX(COLUMNS)
+	 */
+	public List<String> getIndexes() {
+		Map<String, List<String>> indexes = new LinkedHashMap<>();
+		try {
+			@Cleanup
+			PooledConnection conn = pool.checkout();
+			@Cleanup
+			PreparedStatement st = conn
+					.prepareStatement("SELECT TABLE_NAME, INDEX_NAME, COLUMN_NAME FROM INFORMATION_SCHEMA.INDEXES "
+							+ "WHERE TABLE_SCHEMA = SCHEMA() ORDER BY TABLE_NAME, INDEX_NAME, ORDINAL_POSITION");
+			@Cleanup
+			ResultSet rs = st.executeQuery();
+			while (rs.next()) {
+				indexes.computeIfAbsent(
+						rs.getString("TABLE_NAME") + "."
+								+ rs.getString("INDEX_NAME"),
+						k -> new ArrayList<>()).add(rs.getString("COLUMN_NAME"));
+			}
+			List<String> ret = new ArrayList<>();
+			for (Map.Entry<String, List<String>> index : indexes.entrySet()) {
+				ret.add(index.getKey() + "("
+						+ String.join(", ", index.getValue()) + ")");
+			}
+			return ret;
+		} catch (Exception e) {
+			app.log.error(e, "Error listing indexes");
+			throw new WrapperException(e);
+		}
+	}
+
+
 	/**
 	 * Gets a single record.
 	 * 
@@ -388,26 +895,31 @@ public class Db {
 
 	<T extends Base> T retrieve(String name, Class<? extends T> clazz,
 			boolean noProxy, Object... params) {
+		flushPending(clazz, name);
 		try {
 			app.log.entry(name, clazz, noProxy);
 			@Cleanup
-			PreparedStatement st = conn
-					.prepareStatement("SELECT * FROM APPLICATION WHERE NAME = ? AND CLASSNAME = ? AND CURRENT = TRUE AND DELETED = false");
+			PooledConnection conn = pool.checkout();
+			@Cleanup
+			PreparedStatement st = conn.prepareStatement(SELECT_CURRENT);
 			st.setString(1, name);
 			st.setString(2, clazz.getCanonicalName());
 			@Cleanup
 			ResultSet rs = st.executeQuery();
 			if (rs.next()) {
 				String className = rs.getString("CLASSNAME");
-				@SuppressWarnings("unchecked")
-				T record = makeBase(name,
-						(Class<? extends T>) Class.forName(className),
-						rs.getString("JSON"), params);
-				if (noProxy) {
-					return app.log.exit(record);
+				// a fingerprint compares with the object in the current format only
+				StorageFormat.Payload payload = compressor.read(rs, "JSON", "DATA");
+				if (payload.format == format) {
+					fingerprints.put(key(className, name), payload.fingerprint());
 				} else {
-					return app.log.exit(app.setProxies(record));
+					fingerprints.remove(key(className, name));
 				}
+				@SuppressWarnings("unchecked")
+				T record = makeBase(rs,
+						(Class<? extends T>) Class.forName(className), !noProxy,
+						params);
+				return app.log.exit(record);
 			}
 			app.log.warn("Object %s not found!", name);
 			return app.log.exit(null);
@@ -428,11 +940,13 @@ public class Db {
 	 */
 	public <T extends Base> T retrieve(String name, Class<? extends T> clazz,
 			long version, boolean noProxy) {
+		flushPending(clazz, name);
 		try {
 			app.log.entry(name, clazz, version, noProxy);
 			@Cleanup
-			PreparedStatement st = conn
-					.prepareStatement("SELECT * FROM APPLICATION WHERE NAME = ? AND CLASSNAME = ? AND VERSION = ?");
+			PooledConnection conn = pool.checkout();
+			@Cleanup
+			PreparedStatement st = conn.prepareStatement(SELECT_VERSION);
 			st.setString(1, name);
 			st.setString(2, clazz.getCanonicalName());
 			st.setLong(3, version);
@@ -441,14 +955,9 @@ public class Db {
 			if (rs.next()) {
 				String className = rs.getString("CLASSNAME");
 				@SuppressWarnings("unchecked")
-				T record = makeBase(name,
-						(Class<? extends T>) Class.forName(className),
-						rs.getString("JSON"));
-				if (noProxy) {
-					return app.log.exit(record);
-				} else {
-					return app.log.exit(app.setProxies(record));
-				}
+				T record = makeBase(rs,
+						(Class<? extends T>) Class.forName(className), !noProxy);
+				return app.log.exit(record);
 			}
 			app.log.warn("Object %s not found!", name);
 			return app.log.exit(null);
@@ -458,17 +967,38 @@ public class Db {
 		}
 	}
 
-	private <T extends Base> T makeBase(String name, Class<? extends T> clazz,
-			String json, Object... params) {
+	/*
+	 * Current object for a row; the live instance if there is one.
+	 */
+	private <T extends Base> T liveBase(ResultSet rs,
+			Class<? extends Base> clazz) throws SQLException {
+		T known = app.identities.get(rs.getString("NAME"), clazz);
+		if (known != null) {
+			return known;
+		}
+		@SuppressWarnings("unchecked")
+		T record = (T) makeBase(rs, clazz, true);
+		return app.identities.intern(record);
+	}
+
+	/*
+	 * Object for a row. A proxied object is read straight into the proxy
+	 * instance, so the JSON is parsed once.
+	 */
+	private <T extends Base> T makeBase(ResultSet rs, Class<? extends T> clazz,
+			boolean proxy, Object... params) {
 		try {
-			Constructor<?> constructor = app
-					.getConstructor(name, clazz, params);
+			String name = rs.getString("NAME");
+			Constructors.Factory constructor = Constructors.find(clazz, params);
 			if (constructor != null) {
-				@SuppressWarnings("unchecked")
-				T base = (T) constructor.newInstance(app.getConstructorParams(
-						name, clazz, params));
-				base.json = json;
+				T base = proxy ? Proxies.newInstance(clazz, name) : constructor
+						.newInstance(name, clazz, params);
+				StorageFormat.Payload payload = compressor.read(rs, "JSON", "DATA");
+				base.json = payload.json;
+				base.stored = payload.json != null ? null : payload;
 				Application.jsonClone(base, base);
+				base.current = rs.getBoolean("CURRENT");
+				base.children = childrenReader.readValue(rs.getString("CHILDREN"));
 				base.app = app;
 				return base;
 			} else {
@@ -480,11 +1010,12 @@ public class Db {
 		}
 	}
 
-	synchronized long lastNumber(Base base) {
+	long lastNumber(Base base) {
 		try {
 			@Cleanup
-			PreparedStatement st = conn
-					.prepareStatement("SELECT MAX(VERSION) AS HIGHEST FROM APPLICATION WHERE NAME = ? AND CLASSNAME = ?");
+			PooledConnection conn = pool.checkout();
+			@Cleanup
+			PreparedStatement st = conn.prepareStatement(SELECT_LAST_NUMBER);
 			st.setString(1, base.getName());
 			st.setString(2, base.getClazz().getCanonicalName());
 			@Cleanup
@@ -499,8 +1030,8 @@ public class Db {
 		}
 	}
 
-	synchronized long nextNumber(Base base) {
-		return lastNumber(base) + 1;
+	long nextNumber(Base base) {
+		return versions.next(base);
 	}
 
 	/**
@@ -510,20 +1041,19 @@ public class Db {
 	 * @return list of objects
 	 */
 	public <T extends Base> List<T> getList(Class<? extends Base> clazz) {
+		flushPending();
 		List<T> ret = new ArrayList<>();
 		try {
 			app.log.entry(clazz);
 			@Cleanup
-			PreparedStatement st = conn
-					.prepareStatement("SELECT * FROM APPLICATION WHERE CLASSNAME = ? AND CURRENT = TRUE AND DELETED = false ORDER BY NAME");
+			PooledConnection conn = pool.checkout();
+			@Cleanup
+			PreparedStatement st = conn.prepareStatement(SELECT_LIST);
 			st.setString(1, clazz.getCanonicalName());
 			@Cleanup
 			ResultSet rs = st.executeQuery();
 			while (rs.next()) {
-				@SuppressWarnings("unchecked")
-				T record = (T) makeBase(rs.getString("NAME"), clazz,
-						rs.getString("JSON"));
-				ret.add(app.setProxies(record));
+				ret.add(liveBase(rs, clazz));
 			}
 			return app.log.exit(ret);
 		} catch (Exception e) {
@@ -533,6 +1063,93 @@ public class Db {
 		}
 	}
 
+	/**
+	 * Get a page of objects of a specific class, in name order.
+	 * 
+	 * @param clazz
+	 * @param afterName
+	 *            name of the last object of the previous page, null for the
+	 *            first page
+	 * @param limit
+	 *            page size
+	 * @return page of objects
+	 */
+	public <T extends Base> List<T> getListPage(Class<? extends Base> clazz,
+			String afterName, int limit) {
+		flushPending();
+		List<T> ret = new ArrayList<>();
+		try {
+			app.log.entry(clazz, afterName, limit);
+			@Cleanup
+			PooledConnection conn = pool.checkout();
+			@Cleanup
+			PreparedStatement st = conn
+					.prepareStatement(afterName == null ? SELECT_LIST_FIRST
+							: SELECT_LIST_AFTER);
+			int i = 1;
+			st.setString(i++, clazz.getCanonicalName());
+			if (afterName != null) {
+				st.setString(i++, afterName);
+			}
+			st.setInt(i++, limit);
+			@Cleanup
+			ResultSet rs = st.executeQuery();
+			while (rs.next()) {
+				ret.add(liveBase(rs, clazz));
+			}
+			return app.log.exit(ret);
+		} catch (Exception e) {
+			app.log.error(e, "Error getting page of collection %s",
+					clazz.getCanonicalName());
+			throw new WrapperException(e);
+		}
+	}
+
+	/**
+	 * Stream all objects of a specific class. Objects are read as the stream
+	 * is consumed; close the stream when done.
+	 * 
+	 * @param clazz
+	 * @return stream of objects
+	 */
+	public <T extends Base> Stream<T> streamList(Class<? extends Base> clazz) {
+		flushPending();
+		app.log.entry(clazz);
+		return this.<T> openCursor(SELECT_LIST,
+				st -> st.setString(1, clazz.getCanonicalName()),
+				rs -> this.<T> liveBase(rs, clazz)).stream();
+	}
+
+	/*
+	 * Sets query parameters.
+	 */
+	interface Binder {
+		void bind(PreparedStatement st) throws Exception;
+	}
+
+	private <T> Cursor<T> openCursor(String sql, Binder binder,
+			Cursor.RowMapper<T> mapper) {
+		PooledConnection conn = pool.checkout();
+		PreparedStatement st = null;
+		try {
+			st = conn.prepareStatement(sql);
+			st.setFetchSize(fetchSize);
+			binder.bind(st);
+			return new Cursor<>(conn, st, st.executeQuery(), mapper);
+		} catch (Exception e) {
+			try {
+				if (st != null) {
+					st.close();
+				}
+			} catch (SQLException ex) {
+				// ignore
+			}
+			conn.close();
+			app.log.error(e, "Error opening cursor for %s", sql);
+			throw new WrapperException(e);
+		}
+	}
+
 	/**
 	 * Get all versions of a specific object.
 	 * 
@@ -540,20 +1157,21 @@ public class Db {
 	 * @return all versions
 	 */
 	public <T extends Base> List<T> getVersions(T base) {
+		flushPending(base.getClazz(), base.getName());
 		List<T> ret = new ArrayList<>();
 		try {
 			app.log.entry(base);
 			@Cleanup
-			PreparedStatement st = conn
-					.prepareStatement("SELECT * FROM APPLICATION WHERE NAME = ? AND CLASSNAME = ? ORDER BY VERSION");
+			PooledConnection conn = pool.checkout();
+			@Cleanup
+			PreparedStatement st = conn.prepareStatement(SELECT_VERSIONS);
 			st.setString(1, base.getName());
 			st.setString(2, base.clazz.getCanonicalName());
 			@Cleanup
 			ResultSet rs = st.executeQuery();
 			while (rs.next()) {
 				@SuppressWarnings("unchecked")
-				T record = (T) makeBase(rs.getString("NAME"), base.clazz,
-						rs.getString("JSON"));
+				T record = (T) makeBase(rs, base.clazz, false);
 				record.current = false;
 				ret.add(record);
 			}
@@ -565,6 +1183,97 @@ public class Db {
 		}
 	}
 
+	/**
+	 * Get a page of versions of a specific object.
+	 * 
+	 * @param base
+	 * @param afterVersion
+	 *            last version of the previous page, 0 for the first page
+	 * @param limit
+	 *            page size
+	 * @return page of versions
+	 */
+	public <T extends Base> List<T> getVersionsPage(T base, long afterVersion,
+			int limit) {
+		flushPending(base.getClazz(), base.getName());
+		List<T> ret = new ArrayList<>();
+		try {
+			app.log.entry(base, afterVersion, limit);
+			@Cleanup
+			PooledConnection conn = pool.checkout();
+			@Cleanup
+			PreparedStatement st = conn.prepareStatement(SELECT_VERSIONS_AFTER);
+			st.setString(1, base.getName());
+			st.setString(2, base.clazz.getCanonicalName());
+			st.setLong(3, afterVersion);
+			st.setInt(4, limit);
+			@Cleanup
+			ResultSet rs = st.executeQuery();
+			while (rs.next()) {
+				@SuppressWarnings("unchecked")
+				T record = (T) makeBase(rs, base.clazz, false);
+				record.current = false;
+				ret.add(record);
+			}
+			return app.log.exit(ret);
+		} catch (Exception e) {
+			app.log.error(e, "Error getting versions for object %s",
+					base.getName());
+			throw new WrapperException(e);
+		}
+	}
+
+	static final LocalDateTime MIN_STAMP = LocalDateTime.of(1970, 1, 1, 0, 0);
+	static final LocalDateTime MAX_STAMP = LocalDateTime.of(9999, 12, 31, 0, 0);
+
+	/**
+	 * Get a page of logs for a specific object, in time order.
+	 * 
+	 * @param name
+	 * @param clazz
+	 * @param after
+	 *            last entry of the previous page, null for the first page
+	 * @param limit
+	 *            page size
+	 * @param from
+	 *            earliest timestamp (inclusive), or null
+	 * @param to
+	 *            latest timestamp (exclusive), or null
+	 * @return page of logs
+	 */
+	public List<LogEntry> getLogsPage(String name, String clazz,
+			LogEntry after, int limit, LocalDateTime from, LocalDateTime to) {
+		flush();
+		try {
+			app.log.entry(name, clazz, limit);
+			List<LogEntry> logs = new ArrayList<>();
+			LocalDateTime lower = from != null ? from : MIN_STAMP;
+			if (after != null && after.timestamp.isAfter(lower)) {
+				lower = after.timestamp;
+			}
+			@Cleanup
+			PooledConnection conn = pool.checkout();
+			@Cleanup
+			PreparedStatement st = conn.prepareStatement(SELECT_LOGS_AFTER);
+			st.setString(1, name);
+			st.setString(2, clazz);
+			st.setTimestamp(3, Timestamp.valueOf(lower));
+			st.setTimestamp(4, Timestamp.valueOf(to != null ? to : MAX_STAMP));
+			st.setTimestamp(5, Timestamp.valueOf(after != null ? after.timestamp : lower));
+			st.setLong(6, after != null ? after.seq : -1);
+			st.setInt(7, limit);
+			@Cleanup
+			ResultSet rs = st.executeQuery();
+			while (rs.next()) {
+				logs.add(makeLogEntry(rs));
+			}
+			return app.log.exit(logs);
+		} catch (Exception e) {
+			app.log.error(e, "Error getting logs for object %s", name);
+			throw new WrapperException(e);
+		}
+	}
+
 	/**
 	 * Get all logs for a specific object.
 	 * 
@@ -573,12 +1282,14 @@ public class Db {
 	 * @return logs
 	 */
 	public List<LogEntry> getLogs(String name, String clazz) {
+		flush();
 		try {
 			app.log.entry(name, clazz);
 			List<LogEntry> logs = new ArrayList<>();
 			@Cleanup
-			PreparedStatement st = conn
-					.prepareStatement("SELECT * FROM LOGS WHERE NAME = ? AND CLASSNAME = ? ORDER BY STAMP");
+			PooledConnection conn = pool.checkout();
+			@Cleanup
+			PreparedStatement st = conn.prepareStatement(SELECT_LOGS);
 			st.setString(1, name);
 			st.setString(2, clazz);
 			@Cleanup
@@ -600,12 +1311,14 @@ public class Db {
 	 * @return logs
 	 */
 	public List<LogEntry> getAllLogs() {
+		flush();
 		try {
 			app.log.entry();
 			List<LogEntry> logs = new ArrayList<>();
 			@Cleanup
-			PreparedStatement st = conn
-					.prepareStatement("SELECT * FROM LOGS ORDER BY STAMP");
+			PooledConnection conn = pool.checkout();
+			@Cleanup
+			PreparedStatement st = conn.prepareStatement(SELECT_ALL_LOGS);
 			@Cleanup
 			ResultSet rs = st.executeQuery();
 			while (rs.next()) {
@@ -619,6 +1332,19 @@ public class Db {
 		}
 	}
 
+	/**
+	 * Stream all logs. Entries are read as the stream is consumed; close the
+	 * stream when done.
+	 * 
+	 * @return stream of logs
+	 */
+	public Stream<LogEntry> streamAllLogs() {
+		flush();
+		app.log.entry();
+		return openCursor(SELECT_ALL_LOGS, st -> {
+		}, this::makeLogEntry).stream();
+	}
+
 	private LogEntry makeLogEntry(ResultSet rs) {
 		try {
 			LogEntry log = new LogEntry();
@@ -634,10 +1360,17 @@ public class Db {
 			log.setClazz(rs.getString("CLASSNAME"));
 			log.setKind(LogEntry.Kind.fromInteger(rs.getInt("KIND")));
 			log.setMessage(rs.getString("MESSAGE"));
-			log.setObjList(Application.fromJson(rs.getString("OBJLIST"),
-					new ArrayList<>()));
+			String stackHash = rs.getString("STACKHASH");
+			if (stackHash != null) {
+				log.setStackHash(stackHash);
+				log.setObjList(stacks.trace(stackHash));
+			} else {
+				log.setObjList(compressor.read(rs, "OBJLIST", "OBJDATA")
+						.decode(new ArrayList<>()));
+			}
 			log.setThread(rs.getString("THREAD"));
 			log.setTimestamp(rs.getTimestamp("STAMP").toLocalDateTime());
+			log.setSeq(rs.getLong("SEQ"));
 			return log;
 		} catch (Exception e) {
 			throw new WrapperException(e);
@@ -650,19 +1383,58 @@ public class Db {
 	 * @param entry
 	 */
 	public void storeLogEntry(LogEntry entry) {
-		try {
-			@Cleanup
-			PreparedStatement st = conn.prepareStatement("INSERT INTO LOGS ("
-					+ insertSpec(recordSpecLogs) + ") VALUES ("
-					+ questionMarks(recordSpecLogs) + ")");
-			prepareLogs(st, entry);
-			st.execute();
-		} catch (Exception e) {
-			throw new WrapperException(e);
+		if (logWriter != null) {
+			logWriter.offer(entry);
+			return;
+		}
+		StackStore.Stack stack = StackStore.of(entry);
+		if (stack == null) {
+			try {
+				@Cleanup
+				PooledConnection conn = pool.checkout();
+				@Cleanup
+				PreparedStatement st = conn.prepareStatement(INSERT_LOGS);
+				prepareLogs(st, entry, format.encode(entry.objList), null);
+				st.execute();
+			} catch (Exception e) {
+				throw new WrapperException(e);
+			}
+			return;
 		}
+		// the stack and the row referring to it go in together
+		inTransaction(conn -> {
+			stacks.record(conn, Arrays.asList(stack));
+			@Cleanup
+			PreparedStatement st = conn.prepareStatement(INSERT_LOGS);
+			prepareLogs(st, entry, null, stack);
+			return st.execute();
+		});
 	}
 
-	private void prepareLogs(PreparedStatement st, LogEntry entry) {
+	/*
+	 * Store a batch of log entries in one transaction.
+	 */
+	void storeLogEntries(List<LogWriter.Queued> entries) {
+		inTransaction(conn -> {
+			List<StackStore.Stack> batch = new ArrayList<>();
+			for (LogWriter.Queued queued : entries) {
+				if (queued.stack != null) {
+					batch.add(queued.stack);
+				}
+			}
+			stacks.record(conn, batch);
+			@Cleanup
+			PreparedStatement st = conn.prepareStatement(INSERT_LOGS);
+			for (LogWriter.Queued queued : entries) {
+				prepareLogs(st, queued.entry, queued.objList, queued.stack);
+				st.addBatch();
+			}
+			return st.executeBatch();
+		});
+	}
+
+	private void prepareLogs(PreparedStatement st, LogEntry entry,
+			StorageFormat.Payload objList, StackStore.Stack stack) {
 		try {
 			int i = 1;
 			st.setString(i++, entry.name);
@@ -676,8 +1448,17 @@ public class Db {
 			st.setInt(i++, entry.callerLine);
 			st.setString(i++, entry.callerClass);
 			st.setInt(i++, entry.kind.ordinal());
-			st.setString(i++, Application.toJson(entry.objList));
+			// OBJLIST, FORMAT and OBJDATA
+			int text = i++;
 			st.setString(i++, entry.message);
+			st.setString(i++, stack != null ? stack.hash : null);
+			if (objList != null) {
+				compressor.write(st, text, i, i + 1, entry.clazz, objList);
+			} else {
+				st.setString(text, null);
+				st.setInt(i, 0);
+				st.setBytes(i + 1, null);
+			}
 		} catch (Exception e) {
 			throw new WrapperException(e);
 		}
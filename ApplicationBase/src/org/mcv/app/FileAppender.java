@@ -0,0 +1,326 @@
+package org.mcv.app;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @author Miguelc
+ *
+ * Long-lived, buffered appender for a log file.
+ *
+ * Appenders stay open between entries, at most app.logs.file.maxOpen at a
+ * time; the least recently used one is closed when another file is opened.
+ * Files are rotated when they reach app.logs.file.maxBytes or when the
+ * app.logs.file.rotate period (NONE, HOURLY, DAILY) ends; the old file is
+ * renamed to name.yyyyMMdd-HHmmss. Buffers are written every
+ * app.logs.file.flushMillis, or after every entry if 0.
+ */
+public class FileAppender {
+
+	public enum Rotation {
+		NONE, HOURLY, DAILY
+	}
+
+	static final DateTimeFormatter ROTATED = DateTimeFormatter
+			.ofPattern("yyyyMMdd-HHmmss");
+
+	// configuration
+	static volatile int bufferSize = 64 * 1024;
+	static volatile long maxBytes = 10 * 1024 * 1024;
+	static volatile Rotation rotation = Rotation.DAILY;
+	static volatile long flushMillis = 1000;
+	static volatile int maxOpen = 64;
+
+	private static final Map<File, FileAppender> open = new LinkedHashMap<File, FileAppender>(
+			16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<File, FileAppender> eldest) {
+			if (size() > maxOpen) {
+				eldest.getValue().close();
+				evicted.incrementAndGet();
+				return true;
+			}
+			return false;
+		}
+	};
+
+	private static Thread flusher;
+
+	// metrics
+	private static final AtomicLong opened = new AtomicLong();
+	private static final AtomicLong evicted = new AtomicLong();
+	private static final AtomicLong rotated = new AtomicLong();
+	private static final AtomicLong flushes = new AtomicLong();
+
+	private final File file;
+	private final ByteBuffer buffer;
+	private FileChannel channel;
+	private long size;
+	private LocalDateTime periodEnd;
+	private boolean closed;
+
+	private FileAppender(File file) throws IOException {
+		this.file = file;
+		this.buffer = ByteBuffer.allocate(bufferSize);
+		open();
+	}
+
+	/**
+	 * Reads app.logs.file.* settings and starts the flusher.
+	 *
+	 * @param props
+	 */
+	static synchronized void configure(Properties props) {
+		bufferSize = Integer.parseInt(props.getProperty(
+				"app.logs.file.bufferSize", String.valueOf(bufferSize)));
+		maxBytes = Long.parseLong(props.getProperty("app.logs.file.maxBytes",
+				String.valueOf(maxBytes)));
+		rotation = Rotation.valueOf(props.getProperty("app.logs.file.rotate",
+				rotation.toString()));
+		flushMillis = Long.parseLong(props.getProperty(
+				"app.logs.file.flushMillis", String.valueOf(flushMillis)));
+		maxOpen = Math.max(1, Integer.parseInt(props.getProperty(
+				"app.logs.file.maxOpen", String.valueOf(maxOpen))));
+		if (flusher == null) {
+			flusher = new Thread(FileAppender::flushLoop, "FileAppender-flusher");
+			flusher.setDaemon(true);
+			flusher.start();
+			Runtime.getRuntime().addShutdownHook(
+					new Thread(FileAppender::closeAll));
+		}
+	}
+
+	/**
+	 * Appends text to a file.
+	 *
+	 * @param file
+	 * @param text
+	 * @throws IOException
+	 */
+	public static void append(File file, String text) throws IOException {
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		while (true) {
+			FileAppender appender;
+			synchronized (open) {
+				appender = open.get(file);
+				if (appender == null) {
+					appender = new FileAppender(file);
+					open.put(file, appender);
+				}
+			}
+			// false if closed by another thread in the meantime
+			if (appender.write(bytes)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Writes the buffers of all open files.
+	 */
+	public static void flushAll() {
+		for (FileAppender appender : snapshot()) {
+			appender.flush();
+		}
+	}
+
+	/**
+	 * Writes and closes all open files.
+	 */
+	public static void closeAll() {
+		List<FileAppender> appenders;
+		synchronized (open) {
+			appenders = new ArrayList<>(open.values());
+			open.clear();
+		}
+		for (FileAppender appender : appenders) {
+			appender.close();
+		}
+	}
+
+	private static List<FileAppender> snapshot() {
+		synchronized (open) {
+			return new ArrayList<>(open.values());
+		}
+	}
+
+	private static void flushLoop() {
+		while (true) {
+			long millis = flushMillis;
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(millis > 0 ? millis
+					: 1000));
+			flushAll();
+		}
+	}
+
+	private void open() throws IOException {
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (parent != null && !parent.exists()) {
+			parent.mkdirs();
+		}
+		LocalDateTime now = LocalDateTime.now();
+		if (file.exists() && file.length() > 0) {
+			LocalDateTime modified = LocalDateTime.ofInstant(Files
+					.getLastModifiedTime(file.toPath()).toInstant(),
+					ZoneId.systemDefault());
+			if (!end(modified).isAfter(now)) {
+				// left over from an earlier period
+				rename();
+			}
+		}
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		size = channel.size();
+		periodEnd = end(now);
+		opened.incrementAndGet();
+	}
+
+	private synchronized boolean write(byte[] bytes) throws IOException {
+		if (closed) {
+			return false;
+		}
+		if ((maxBytes > 0 && size + buffer.position() + bytes.length > maxBytes && size
+				+ buffer.position() > 0)
+				|| !LocalDateTime.now().isBefore(periodEnd)) {
+			rotate();
+		}
+		if (bytes.length > buffer.remaining()) {
+			drain();
+		}
+		if (bytes.length > buffer.capacity()) {
+			write(ByteBuffer.wrap(bytes));
+		} else {
+			buffer.put(bytes);
+		}
+		if (flushMillis <= 0) {
+			drain();
+		}
+		return true;
+	}
+
+	private void rotate() throws IOException {
+		drain();
+		channel.close();
+		rename();
+		rotated.incrementAndGet();
+		open();
+	}
+
+	private void rename() throws IOException {
+		String stamp = LocalDateTime.now().format(ROTATED);
+		File target = new File(file.getPath() + "." + stamp);
+		for (int i = 1; target.exists(); i++) {
+			target = new File(file.getPath() + "." + stamp + "." + i);
+		}
+		Files.move(file.toPath(), target.toPath());
+	}
+
+	private static LocalDateTime end(LocalDateTime time) {
+		switch (rotation) {
+		case HOURLY:
+			return time.truncatedTo(ChronoUnit.HOURS).plusHours(1);
+		case DAILY:
+			return time.truncatedTo(ChronoUnit.DAYS).plusDays(1);
+		case NONE:
+		default:
+			return LocalDateTime.MAX;
+		}
+	}
+
+	private void drain() throws IOException {
+		if (buffer.position() == 0) {
+			return;
+		}
+		buffer.flip();
+		write(buffer);
+		buffer.clear();
+		flushes.incrementAndGet();
+	}
+
+	private void write(ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining()) {
+			size += channel.write(buf);
+		}
+	}
+
+	/**
+	 * Writes the buffer to the file.
+	 */
+	public synchronized void flush() {
+		if (closed) {
+			return;
+		}
+		try {
+			drain();
+		} catch (IOException e) {
+			System.out.println("Error writing log file " + file + ": " + e);
+		}
+	}
+
+	/**
+	 * Writes the buffer and closes the file.
+	 */
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		flush();
+		closed = true;
+		try {
+			channel.close();
+		} catch (IOException e) {
+			System.out.println("Error closing log file " + file + ": " + e);
+		}
+	}
+
+	/*
+	 * Metrics.
+	 */
+	public static int getOpen() {
+		synchronized (open) {
+			return open.size();
+		}
+	}
+
+	public static long getOpened() {
+		return opened.get();
+	}
+
+	public static long getEvicted() {
+		return evicted.get();
+	}
+
+	public static long getRotated() {
+		return rotated.get();
+	}
+
+	public static long getFlushes() {
+		return flushes.get();
+	}
+
+	public static String metrics() {
+		return String.format(
+				"FileAppender(open=%d, opened=%d, evicted=%d, rotated=%d, flushes=%d)",
+				getOpen(), getOpened(), getEvicted(), getRotated(),
+				getFlushes());
+	}
+}
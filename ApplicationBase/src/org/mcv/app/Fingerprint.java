@@ -0,0 +1,88 @@
+package org.mcv.app;
+
+/**
+ * @author Miguelc
+ *
+ * 128-bit hash of a serialized object, to tell whether it changed without
+ * keeping the serialized form around.
+ */
+public final class Fingerprint {
+
+	private final long h1;
+	private final long h2;
+
+	private Fingerprint(long h1, long h2) {
+		this.h1 = h1;
+		this.h2 = h2;
+	}
+
+	/**
+	 * Fingerprint of a string.
+	 *
+	 * @param s	string
+	 * @return fingerprint
+	 */
+	public static Fingerprint of(String s) {
+		// FNV-1a and a multiply-rotate hash, independent enough for 128 bits
+		long h1 = 0xcbf29ce484222325L;
+		long h2 = 0x9e3779b97f4a7c15L;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			h1 = (h1 ^ c) * 0x100000001b3L;
+			h2 = Long.rotateLeft(h2 ^ c, 31) * 0xbf58476d1ce4e5b9L;
+		}
+		return new Fingerprint(mix(h1 ^ s.length()), mix(h2 ^ s.length()));
+	}
+
+	/**
+	 * Fingerprint of bytes.
+	 *
+	 * @param b	bytes
+	 * @return fingerprint
+	 */
+	public static Fingerprint of(byte[] b) {
+		long h1 = 0xcbf29ce484222325L;
+		long h2 = 0x9e3779b97f4a7c15L;
+		for (int i = 0; i < b.length; i++) {
+			int c = b[i] & 0xff;
+			h1 = (h1 ^ c) * 0x100000001b3L;
+			h2 = Long.rotateLeft(h2 ^ c, 31) * 0xbf58476d1ce4e5b9L;
+		}
+		return new Fingerprint(mix(h1 ^ b.length), mix(h2 ^ b.length));
+	}
+
+	private static long mix(long h) {
+		h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+		h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+		return h ^ (h >>> 33);
+	}
+
+	/**
+	 * Does the string have this fingerprint?
+	 *
+	 * @param s	string
+	 * @return boolean
+	 */
+	public boolean matches(String s) {
+		return equals(of(s));
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof Fingerprint)) {
+			return false;
+		}
+		Fingerprint other = (Fingerprint) obj;
+		return h1 == other.h1 && h2 == other.h2;
+	}
+
+	@Override
+	public int hashCode() {
+		return (int) h1;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%016x%016x", h1, h2);
+	}
+}
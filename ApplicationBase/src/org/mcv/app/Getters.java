@@ -0,0 +1,84 @@
+package org.mcv.app;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * @author Miguelc
+ *
+ * Getter matching a setter (setXxx to getXxx or isXxx), resolved once per
+ * class and setter, for SetterAdvice to read the old value.
+ */
+public class Getters {
+
+	private static final MethodType GETTER = MethodType.methodType(
+			Object.class, Object.class);
+
+	// for setters without a getter
+	private static final MethodHandle NONE = MethodHandles.dropArguments(
+			MethodHandles.constant(Object.class, null), 0, Object.class);
+
+	private static final ClassValue<ConcurrentMap<String, MethodHandle>> GETTERS = new ClassValue<ConcurrentMap<String, MethodHandle>>() {
+		@Override
+		protected ConcurrentMap<String, MethodHandle> computeValue(Class<?> type) {
+			return new ConcurrentHashMap<>();
+		}
+	};
+
+	private Getters() {
+	}
+
+	/**
+	 * Current value of the property a setter sets.
+	 *
+	 * @param target	object
+	 * @param clazz		class declaring the setter
+	 * @param setter	setter name
+	 * @return value, null if there is no getter
+	 */
+	static Object get(Object target, Class<?> clazz, String setter) {
+		ConcurrentMap<String, MethodHandle> getters = GETTERS.get(clazz);
+		MethodHandle getter = getters.get(setter);
+		if (getter == null) {
+			getter = getters.computeIfAbsent(setter, s -> resolve(clazz, s));
+		}
+		try {
+			return getter.invokeExact(target);
+		} catch (Throwable t) {
+			return null;
+		}
+	}
+
+	private static MethodHandle resolve(Class<?> clazz, String setter) {
+		if (!setter.startsWith("set")) {
+			return NONE;
+		}
+		String property = setter.substring(3);
+		Method method = find(clazz, "get" + property);
+		if (method == null) {
+			method = find(clazz, "is" + property);
+		}
+		if (method == null) {
+			return NONE;
+		}
+		try {
+			method.setAccessible(true);
+			return MethodHandles.lookup().unreflect(method).asType(GETTER);
+		} catch (Exception e) {
+			return NONE;
+		}
+	}
+
+	private static Method find(Class<?> clazz, String name) {
+		try {
+			Method method = clazz.getMethod(name);
+			return method.getReturnType() != void.class ? method : null;
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+}
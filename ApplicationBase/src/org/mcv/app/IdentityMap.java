@@ -0,0 +1,181 @@
+package org.mcv.app;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author Miguelc
+ *
+ * Live current objects by class and name, so asking for the same object twice
+ * returns the same instance without going to the database.
+ *
+ * Objects are held weakly; once the application drops an object it is read
+ * from the database again. Only current, not deleted objects are kept.
+ * Changes made through another Application are not seen.
+ */
+public class IdentityMap {
+
+	private final boolean enabled;
+	private final ConcurrentMap<String, Ref> refs = new ConcurrentHashMap<>();
+	private final ReferenceQueue<Base> queue = new ReferenceQueue<>();
+
+	// metrics
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	static class Ref extends WeakReference<Base> {
+		final String key;
+
+		Ref(Base base, String key, ReferenceQueue<Base> queue) {
+			super(base, queue);
+			this.key = key;
+		}
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param enabled	if false, nothing is kept
+	 */
+	public IdentityMap(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * The live instance of an object, if any.
+	 *
+	 * @param name
+	 * @param clazz
+	 * @return object or null
+	 */
+	@SuppressWarnings("unchecked")
+	public <T extends Base> T get(String name, Class<?> clazz) {
+		if (!enabled) {
+			return null;
+		}
+		expunge();
+		Base base = live(refs.get(Db.key(clazz.getCanonicalName(), name)));
+		if (base == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return (T) base;
+	}
+
+	/**
+	 * Keeps an object unless another instance is already live.
+	 *
+	 * @param base
+	 * @return the live instance
+	 */
+	@SuppressWarnings("unchecked")
+	public <T extends Base> T intern(T base) {
+		if (!enabled || base == null || !usable(base)) {
+			return base;
+		}
+		expunge();
+		String key = Db.key(base);
+		Ref ref = new Ref(base, key, queue);
+		while (true) {
+			Ref old = refs.putIfAbsent(key, ref);
+			if (old == null) {
+				return base;
+			}
+			Base known = live(old);
+			if (known != null) {
+				return (T) known;
+			}
+			if (refs.replace(key, old, ref)) {
+				return base;
+			}
+		}
+	}
+
+	/**
+	 * Makes an object the live instance, or forgets it if it is no longer
+	 * current.
+	 *
+	 * @param base
+	 */
+	public void put(Base base) {
+		if (!enabled) {
+			return;
+		}
+		if (!usable(base)) {
+			remove(base);
+			return;
+		}
+		expunge();
+		String key = Db.key(base);
+		refs.put(key, new Ref(base, key, queue));
+	}
+
+	/**
+	 * Forgets an object, if it is the live instance.
+	 *
+	 * @param base
+	 */
+	public void remove(Base base) {
+		String key = Db.key(base);
+		Ref ref = refs.get(key);
+		if (ref != null && ref.get() == base) {
+			refs.remove(key, ref);
+		}
+	}
+
+	/**
+	 * Forgets all objects.
+	 */
+	public void clear() {
+		refs.clear();
+	}
+
+	private static Base live(Ref ref) {
+		Base base = ref == null ? null : ref.get();
+		return base != null && usable(base) ? base : null;
+	}
+
+	private static boolean usable(Base base) {
+		return base.current && !base.deleted;
+	}
+
+	private void expunge() {
+		Reference<? extends Base> ref;
+		while ((ref = queue.poll()) != null) {
+			refs.remove(((Ref) ref).key, ref);
+		}
+	}
+
+	/*
+	 * Metrics.
+	 */
+	public int getSize() {
+		expunge();
+		return refs.size();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public double getHitRate() {
+		long total = getHits() + getMisses();
+		return total == 0 ? 0 : (double) getHits() / total;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"IdentityMap(enabled=%b, size=%d, hits=%d, misses=%d, hitRate=%.2f)",
+				enabled, getSize(), getHits(), getMisses(), getHitRate());
+	}
+}
@@ -51,4 +51,8 @@ public class LogEntry {
 	Kind kind;
 	List<Object> objList;
 	String message;
+	// order of entries with the same timestamp, set when read from the DB
+	long seq;
+	// hash of the stack trace in STACKS, set when read from the DB
+	String stackHash;
 }
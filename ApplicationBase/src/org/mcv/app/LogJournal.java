@@ -0,0 +1,540 @@
+package org.mcv.app;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import lombok.Cleanup;
+
+import org.mcv.app.LogEntry.Kind;
+
+/**
+ * @author Miguelc
+ *
+ * Append-only binary log journal, a faster alternative to log files and the
+ * LOGS table (app.logs.journal=&lt;directory&gt;).
+ *
+ * Entries are written to memory-mapped segment files, name.NNNNNN.jnl, of
+ * app.logs.journal.segmentSize bytes; a new segment is started when one is
+ * full and when the journal is opened. Class, method and thread names are
+ * written once per segment, as dictionary records, and referred to by number,
+ * so each segment can be read on its own.
+ *
+ * Segment layout: int magic, then records of int length, byte type and body,
+ * up to the first length 0. The length is written last, so a reader never sees
+ * a partial record. The seq of an entry is segment number &lt;&lt; 32 | entry
+ * number in the segment.
+ */
+public class LogJournal {
+
+	static final int MAGIC = 0x4D434A31; // MCJ1
+	static final byte DICT = 1;
+	static final byte ENTRY = 2;
+	static final String SUFFIX = ".jnl";
+	private static final int NONE = -1;
+	// fixed part of an entry: type, stamp, nanos, kind, 7 names, 2 lines, 2 string lengths
+	private static final int ENTRY_SIZE = 1 + 8 + 4 + 1 + 7 * 4 + 2 * 4 + 2 * 4;
+
+	private final File dir;
+	private final String name;
+	private final int segmentSize;
+	final Kind level;
+
+	private int segment;
+	private FileChannel channel;
+	private MappedByteBuffer buffer;
+	private final Map<String, Integer> dict = new HashMap<>();
+	// names to add to the dictionary before the next entry
+	private final Map<String, byte[]> added = new LinkedHashMap<>();
+	private final int[] ids = new int[7];
+	private boolean closed;
+	private final Thread shutdownHook = new Thread(this::close);
+
+	// metrics
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong segments = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+
+	/**
+	 * Constructor. Starts a new segment.
+	 *
+	 * @param dir			journal directory
+	 * @param name			application name
+	 * @param segmentSize	segment file size
+	 * @param level			log level
+	 */
+	public LogJournal(File dir, String name, int segmentSize, Kind level) {
+		this.dir = dir;
+		this.name = name;
+		this.segmentSize = segmentSize;
+		this.level = level;
+		dir.mkdirs();
+		int[] existing = segmentNumbers(dir, name);
+		segment = existing.length == 0 ? 0 : existing[existing.length - 1];
+		try {
+			roll(0);
+		} catch (IOException e) {
+			throw new WrapperException(e);
+		}
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
+	}
+
+	/**
+	 * Appends an entry. A journal that cannot be written, a full disk for
+	 * one, is closed and drops later entries, rather than failing the
+	 * logging method.
+	 *
+	 * @param entry
+	 */
+	public void append(LogEntry entry) {
+		byte[] message = bytes(entry.message);
+		byte[] objList = bytes(Application.toJson(entry.objList));
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			try {
+				int body = 4 + ENTRY_SIZE + length(message) + length(objList);
+				int size = resolve(entry) + body;
+				// keep room for the terminating length 0
+				if (size + 4 > buffer.remaining()) {
+					// the next segment has a dictionary of its own, so the
+					// names are defined again and counted before it is sized
+					dict.clear();
+					size = resolve(entry) + body;
+					roll(size);
+				}
+				for (Map.Entry<String, byte[]> def : added.entrySet()) {
+					int start = begin(DICT);
+					buffer.putInt(dict.size());
+					putBytes(def.getValue());
+					end(start);
+					dict.put(def.getKey(), dict.size());
+				}
+				int start = begin(ENTRY);
+				buffer.putLong(entry.timestamp.toEpochSecond(ZoneOffset.UTC));
+				buffer.putInt(entry.timestamp.getNano());
+				buffer.put((byte) entry.kind.ordinal());
+				for (int id : ids) {
+					buffer.putInt(id);
+				}
+				buffer.putInt(entry.methodLine);
+				buffer.putInt(entry.callerLine);
+				putBytes(message);
+				putBytes(objList);
+				end(start);
+				written.incrementAndGet();
+				bytes.addAndGet(size);
+			} catch (IOException | RuntimeException e) {
+				failed.incrementAndGet();
+				System.out.println("Error writing log journal " + name
+						+ ", journal disabled: " + e);
+				close();
+			}
+		}
+	}
+
+	/*
+	 * Looks up the names of an entry in the dictionary; names not there yet
+	 * are added to the list of definitions to write first.
+	 *
+	 * @return size of the definitions
+	 */
+	private int resolve(LogEntry entry) {
+		added.clear();
+		String[] names = { entry.name, entry.clazz, entry.thread, entry.method,
+				entry.methodClass, entry.caller, entry.callerClass };
+		int size = 0;
+		for (int i = 0; i < names.length; i++) {
+			if (names[i] == null) {
+				ids[i] = NONE;
+				continue;
+			}
+			Integer id = dict.get(names[i]);
+			if (id == null) {
+				byte[] def = added.get(names[i]);
+				if (def == null) {
+					def = names[i].getBytes(StandardCharsets.UTF_8);
+					added.put(names[i], def);
+					size += 4 + 1 + 4 + 4 + def.length;
+				}
+				id = dict.size() + indexOf(names[i]);
+			}
+			ids[i] = id;
+		}
+		return size;
+	}
+
+	private int indexOf(String name) {
+		int i = 0;
+		for (String key : added.keySet()) {
+			if (key.equals(name)) {
+				return i;
+			}
+			i++;
+		}
+		return -1;
+	}
+
+	private int begin(byte type) {
+		int start = buffer.position();
+		buffer.position(start + 4);
+		buffer.put(type);
+		return start;
+	}
+
+	private void end(int start) {
+		buffer.putInt(start, buffer.position() - start - 4);
+	}
+
+	private void putBytes(byte[] b) {
+		if (b == null) {
+			buffer.putInt(NONE);
+		} else {
+			buffer.putInt(b.length);
+			buffer.put(b);
+		}
+	}
+
+	private static byte[] bytes(String s) {
+		return s == null ? null : s.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static int length(byte[] b) {
+		return b == null ? 0 : b.length;
+	}
+
+	/*
+	 * Closes the current segment and starts the next one, big enough for a
+	 * record of the given size, with its definitions; the dictionary must be
+	 * empty.
+	 */
+	private void roll(int size) throws IOException {
+		closeSegment();
+		segment++;
+		File file = segmentFile(dir, name, segment);
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		buffer = channel.map(MapMode.READ_WRITE, 0,
+				Math.max(segmentSize, 4 + size + 4));
+		buffer.putInt(MAGIC);
+		segments.incrementAndGet();
+	}
+
+	private void closeSegment() throws IOException {
+		try {
+			if (buffer != null) {
+				buffer.force();
+			}
+		} finally {
+			unmap(buffer);
+			buffer = null;
+			if (channel != null) {
+				channel.close();
+				channel = null;
+			}
+		}
+	}
+
+	/*
+	 * Releases a mapping now rather than when the buffer is collected, so
+	 * the file can be deleted or renamed; the buffer must not be used after.
+	 */
+	static void unmap(MappedByteBuffer buf) {
+		if (buf == null) {
+			return;
+		}
+		try {
+			// Java 9+
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(
+					theUnsafe.get(null), buf);
+		} catch (NoSuchMethodException e) {
+			try {
+				// Java 8
+				Method cleaner = buf.getClass().getMethod("cleaner");
+				cleaner.setAccessible(true);
+				Object c = cleaner.invoke(buf);
+				if (c != null) {
+					c.getClass().getMethod("clean").invoke(c);
+				}
+			} catch (Exception e8) {
+				// left to the garbage collector
+			}
+		} catch (Exception e) {
+			// left to the garbage collector
+		}
+	}
+
+	/**
+	 * Writes the current segment to disk.
+	 */
+	public synchronized void force() {
+		if (!closed) {
+			buffer.force();
+		}
+	}
+
+	/**
+	 * Writes and closes the current segment.
+	 */
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			Runtime.getRuntime().removeShutdownHook(shutdownHook);
+		} catch (IllegalStateException e) {
+			// shutting down
+		}
+		try {
+			closeSegment();
+		} catch (IOException e) {
+			System.out.println("Error closing log journal " + name + ": " + e);
+		}
+	}
+
+	/**
+	 * Get the logs for an object, or all objects if name and clazz are null.
+	 *
+	 * @param name
+	 * @param clazz
+	 * @param from
+	 *            lower bound of the timestamp (inclusive), or null
+	 * @param to
+	 *            upper bound of the timestamp (exclusive), or null
+	 * @return logs, in the order written
+	 */
+	public List<LogEntry> getLogs(String name, String clazz,
+			LocalDateTime from, LocalDateTime to) {
+		return getLogsPage(name, clazz, null, Integer.MAX_VALUE, from, to);
+	}
+
+	/**
+	 * Get a page of the logs for an object.
+	 *
+	 * @param name
+	 * @param clazz
+	 * @param after
+	 *            last entry of the previous page, null for the first page
+	 * @param limit
+	 *            page size
+	 * @param from
+	 *            lower bound of the timestamp (inclusive), or null
+	 * @param to
+	 *            upper bound of the timestamp (exclusive), or null
+	 * @return logs, in the order written
+	 */
+	public List<LogEntry> getLogsPage(String name, String clazz,
+			LogEntry after, int limit, LocalDateTime from, LocalDateTime to) {
+		return read(dir, this.name, name, clazz, after == null ? -1 : after.seq,
+				limit, from, to);
+	}
+
+	/**
+	 * Reads entries from the segments of a journal.
+	 *
+	 * @param dir
+	 * @param app		application name
+	 * @param name		object name, or null for all
+	 * @param clazz		class name, or null for all
+	 * @param afterSeq	read entries after this seq, -1 for all
+	 * @param limit		maximum entries
+	 * @param from		lower bound of the timestamp (inclusive), or null
+	 * @param to		upper bound of the timestamp (exclusive), or null
+	 * @return entries
+	 */
+	public static List<LogEntry> read(File dir, String app, String name,
+			String clazz, long afterSeq, int limit, LocalDateTime from,
+			LocalDateTime to) {
+		List<LogEntry> result = new ArrayList<>();
+		for (int segment : segmentNumbers(dir, app)) {
+			if (result.size() >= limit) {
+				break;
+			}
+			if (afterSeq >= 0 && segment < (int) (afterSeq >>> 32)) {
+				continue;
+			}
+			try {
+				readSegment(segmentFile(dir, app, segment), segment, name,
+						clazz, afterSeq, limit, from, to, result);
+			} catch (IOException e) {
+				throw new WrapperException(e);
+			}
+		}
+		return result;
+	}
+
+	private static void readSegment(File file, int segment, String name,
+			String clazz, long afterSeq, int limit, LocalDateTime from,
+			LocalDateTime to, List<LogEntry> result) throws IOException {
+		@Cleanup
+		FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		MappedByteBuffer buf = ch.map(MapMode.READ_ONLY, 0, ch.size());
+		try {
+			readSegment(buf, segment, name, clazz, afterSeq, limit, from, to,
+					result);
+		} finally {
+			unmap(buf);
+		}
+	}
+
+	private static void readSegment(MappedByteBuffer buf, int segment,
+			String name, String clazz, long afterSeq, int limit,
+			LocalDateTime from, LocalDateTime to, List<LogEntry> result) {
+		if (buf.remaining() < 4 || buf.getInt() != MAGIC) {
+			return;
+		}
+		List<String> names = new ArrayList<>();
+		int count = 0;
+		while (result.size() < limit && buf.remaining() >= 4) {
+			int length = buf.getInt();
+			if (length <= 0 || length > buf.remaining()) {
+				break;
+			}
+			int next = buf.position() + length;
+			byte type = buf.get();
+			if (type == DICT) {
+				buf.getInt(); // ids are consecutive
+				names.add(getString(buf));
+			} else if (type == ENTRY) {
+				long seq = (long) segment << 32 | count++;
+				LogEntry entry = readEntry(buf, names);
+				if (seq > afterSeq
+						&& (name == null || name.equals(entry.name))
+						&& (clazz == null || clazz.equals(entry.clazz))
+						&& (from == null || !entry.timestamp.isBefore(from))
+						&& (to == null || entry.timestamp.isBefore(to))) {
+					entry.seq = seq;
+					entry.message = getString(buf);
+					String objList = getString(buf);
+					entry.objList = objList == null ? null : Application
+							.fromJson(objList, new ArrayList<>());
+					result.add(entry);
+				}
+			}
+			buf.position(next);
+		}
+	}
+
+	/*
+	 * Reads the fixed part of an entry.
+	 */
+	private static LogEntry readEntry(ByteBuffer buf, List<String> names) {
+		LogEntry entry = new LogEntry();
+		entry.timestamp = LocalDateTime.ofEpochSecond(buf.getLong(),
+				buf.getInt(), ZoneOffset.UTC);
+		entry.kind = Kind.fromInteger(buf.get());
+		entry.name = name(names, buf.getInt());
+		entry.clazz = name(names, buf.getInt());
+		entry.thread = name(names, buf.getInt());
+		entry.method = name(names, buf.getInt());
+		entry.methodClass = name(names, buf.getInt());
+		entry.caller = name(names, buf.getInt());
+		entry.callerClass = name(names, buf.getInt());
+		entry.methodLine = buf.getInt();
+		entry.callerLine = buf.getInt();
+		return entry;
+	}
+
+	private static String name(List<String> names, int id) {
+		return id == NONE ? null : names.get(id);
+	}
+
+	private static String getString(ByteBuffer buf) {
+		int length = buf.getInt();
+		if (length == NONE) {
+			return null;
+		}
+		byte[] b = new byte[length];
+		buf.get(b);
+		return new String(b, StandardCharsets.UTF_8);
+	}
+
+	static File segmentFile(File dir, String name, int segment) {
+		return new File(dir, String.format("%s.%06d%s", name, segment, SUFFIX));
+	}
+
+	static int[] segmentNumbers(File dir, String name) {
+		Pattern pattern = Pattern.compile(Pattern.quote(name) + "\\.(\\d+)"
+				+ Pattern.quote(SUFFIX));
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return new int[0];
+		}
+		return Arrays.stream(files).map(f -> pattern.matcher(f.getName()))
+				.filter(Matcher::matches)
+				.mapToInt(m -> Integer.parseInt(m.group(1))).sorted().toArray();
+	}
+
+	/*
+	 * Metrics.
+	 */
+	public long getWritten() {
+		return written.get();
+	}
+
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	public long getSegments() {
+		return segments.get();
+	}
+
+	public long getFailed() {
+		return failed.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"LogJournal(%s, written=%d, bytes=%d, segments=%d, failed=%d)",
+				segmentFile(dir, name, segment), getWritten(), getBytes(),
+				getSegments(), getFailed());
+	}
+
+	/**
+	 * Prints a journal in the log file format.
+	 *
+	 * Usage: LogJournal &lt;directory&gt; &lt;application&gt; [&lt;name&gt; [&lt;class&gt;]]
+	 *
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		if (args.length < 2) {
+			System.out.println("Usage: LogJournal <directory> <application> [<name> [<class>]]");
+			System.exit(1);
+		}
+		Application.initMapper(new Properties());
+		for (LogEntry entry : read(new File(args[0]), args[1],
+				args.length > 2 ? args[2] : null,
+				args.length > 3 ? args[3] : null, -1, Integer.MAX_VALUE, null,
+				null)) {
+			System.out.println(Application.formatLog(entry));
+		}
+	}
+}
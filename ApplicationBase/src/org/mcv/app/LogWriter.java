@@ -0,0 +1,190 @@
+package org.mcv.app;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @author Miguelc
+ *
+ * Asynchronous sink for the LOGS table.
+ *
+ * Entries are queued by the logging thread and written in batches by a
+ * background thread, one transaction per batch. A batch is written when it is
+ * full or when the oldest entry has waited for the linger time. When the queue
+ * is full, new entries are dropped and counted.
+ */
+public class LogWriter implements Runnable {
+
+	private final Db db;
+	private final BlockingQueue<Queued> queue;
+	private final int batchSize;
+	private final long lingerNanos;
+	private final Object writeLock = new Object();
+	private final Thread thread;
+	private volatile boolean running = true;
+	private final Thread shutdownHook = new Thread(this::flush);
+
+	// metrics
+	private final AtomicLong queued = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+
+	/**
+	 * Constructor. Starts the writer thread.
+	 *
+	 * @param db			database
+	 * @param name			application name
+	 * @param capacity		queue capacity
+	 * @param batchSize		maximum entries per batch
+	 * @param lingerMillis	maximum wait before writing a partial batch
+	 */
+	public LogWriter(Db db, String name, int capacity, int batchSize,
+			long lingerMillis) {
+		this.db = db;
+		this.queue = new ArrayBlockingQueue<>(capacity);
+		this.batchSize = batchSize;
+		this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+		thread = new Thread(this, "LogWriter-" + name);
+		thread.setDaemon(true);
+		thread.start();
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
+	}
+
+	/**
+	 * Queues an entry.
+	 *
+	 * @param entry
+	 * @return false if the entry was dropped
+	 */
+	public boolean offer(LogEntry entry) {
+		// serialize now: the objects may change before the entry is written
+		if (!running || !queue.offer(new Queued(entry, db.getStorageFormat()))) {
+			dropped.incrementAndGet();
+			return false;
+		}
+		queued.incrementAndGet();
+		if (queue.size() >= batchSize) {
+			LockSupport.unpark(thread);
+		}
+		return true;
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			if (queue.size() < batchSize) {
+				LockSupport.parkNanos(this, lingerNanos);
+			}
+			drain();
+		}
+	}
+
+	/**
+	 * Writes all queued entries.
+	 */
+	public void flush() {
+		drain();
+	}
+
+	/*
+	 * Entries only leave the queue under the write lock, so a flush that
+	 * returns has seen everything queued before it started. A failed batch
+	 * ends the drain: the error it logs is queued here too, and the rest is
+	 * left for the next cycle.
+	 */
+	private void drain() {
+		synchronized (writeLock) {
+			List<Queued> batch = new ArrayList<>(batchSize);
+			while (queue.drainTo(batch, batchSize) > 0) {
+				try {
+					db.storeLogEntries(batch);
+					written.addAndGet(batch.size());
+					batches.incrementAndGet();
+				} catch (Exception e) {
+					failed.addAndGet(batch.size());
+					db.log().error(e, "Error writing %d log entries",
+							batch.size());
+					return;
+				}
+				batch.clear();
+			}
+		}
+	}
+
+	/**
+	 * Stops the writer thread after writing all queued entries.
+	 */
+	public void close() {
+		try {
+			Runtime.getRuntime().removeShutdownHook(shutdownHook);
+		} catch (IllegalStateException e) {
+			// shutting down
+		}
+		running = false;
+		LockSupport.unpark(thread);
+		try {
+			thread.join(TimeUnit.NANOSECONDS.toMillis(lingerNanos) + 1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		drain();
+	}
+
+	/*
+	 * A log entry with its serialized object list, or its stack trace, which
+	 * is stored separately.
+	 */
+	static class Queued {
+		final LogEntry entry;
+		final StorageFormat.Payload objList;
+		final StackStore.Stack stack;
+
+		Queued(LogEntry entry, StorageFormat format) {
+			this.entry = entry;
+			this.stack = StackStore.of(entry);
+			this.objList = stack != null ? null : format.encode(entry.objList);
+		}
+	}
+
+	/*
+	 * Metrics.
+	 */
+	public int getPending() {
+		return queue.size();
+	}
+
+	public long getQueued() {
+		return queued.get();
+	}
+
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	public long getWritten() {
+		return written.get();
+	}
+
+	public long getBatches() {
+		return batches.get();
+	}
+
+	public long getFailed() {
+		return failed.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"LogWriter(pending=%d, queued=%d, dropped=%d, written=%d, batches=%d, failed=%d)",
+				getPending(), getQueued(), getDropped(), getWritten(),
+				getBatches(), getFailed());
+	}
+}
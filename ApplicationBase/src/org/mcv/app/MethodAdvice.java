@@ -3,6 +3,8 @@ package org.mcv.app;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.mcv.app.LogEntry.Kind;
+
 import jodd.proxetta.ProxyAdvice;
 import jodd.proxetta.ProxyTarget;
 import jodd.proxetta.ProxyTargetInfo;
@@ -22,7 +24,7 @@ public class MethodAdvice implements ProxyAdvice {
 		Base base = (Base)ProxyTarget.target();
 		try {
 			// ENTRY LOG
-			if(check(info)) {
+			if(check(info) && base.isLogEnabled(Kind.ENTRY)) {
 				List<Object> args = new ArrayList<>();
 				for (int i = 0; i < info.argumentCount; i++) {
 					args.add(info.arguments[i]);
@@ -32,7 +34,7 @@ public class MethodAdvice implements ProxyAdvice {
 			// INVOKE
 			Object retval = ProxyTarget.invoke();			
 			// EXIT LOG
-			if(check(info)) {
+			if(check(info) && base.isLogEnabled(Kind.EXIT)) {
 				base.exit(retval);
 			}
 			return retval;
@@ -0,0 +1,172 @@
+package org.mcv.app;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * @author Miguelc
+ *
+ * A connection checked out from the ConnectionPool. Closing it returns it to
+ * the pool.
+ *
+ * Prepared statements are cached per SQL string. Closing a statement obtained
+ * from prepareStatement() puts it back in the cache instead of closing it.
+ */
+public class PooledConnection implements AutoCloseable {
+
+	private final ConnectionPool pool;
+	private final Connection conn;
+	private final Map<String, PreparedStatement> statements;
+
+	// owned by the pool
+	volatile Thread owner;
+	volatile int depth;
+
+	PooledConnection(ConnectionPool pool, Connection conn, int cacheSize) {
+		this.pool = pool;
+		this.conn = conn;
+		this.statements = new LinkedHashMap<String, PreparedStatement>(16,
+				0.75f, false) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<String, PreparedStatement> eldest) {
+				if (size() > cacheSize) {
+					pool.statementEvicted();
+					closeQuietly(eldest.getValue());
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	public Connection getConnection() {
+		return conn;
+	}
+
+	/**
+	 * Gets a prepared statement from the cache, or prepares a new one.
+	 *
+	 * @param sql	SQL
+	 * @return statement, to be closed after use
+	 * @throws SQLException
+	 */
+	public PreparedStatement prepareStatement(String sql) throws SQLException {
+		PreparedStatement st;
+		synchronized (statements) {
+			// taken out while in use, so nested use of the same SQL gets its own
+			st = statements.remove(sql);
+		}
+		if (st != null) {
+			pool.statementHit();
+		} else {
+			pool.statementMiss();
+			st = conn.prepareStatement(sql);
+		}
+		return (PreparedStatement) Proxy.newProxyInstance(
+				PreparedStatement.class.getClassLoader(),
+				new Class<?>[] { PreparedStatement.class }, new CachedStatement(
+						sql, st));
+	}
+
+	private void giveBack(String sql, PreparedStatement st) {
+		try {
+			// a failed executeBatch leaves its rows queued
+			st.clearBatch();
+			st.clearParameters();
+		} catch (SQLException e) {
+			closeQuietly(st);
+			return;
+		}
+		PreparedStatement old;
+		synchronized (statements) {
+			old = statements.put(sql, st);
+		}
+		if (old != null) {
+			closeQuietly(old);
+		}
+	}
+
+	private static void closeQuietly(PreparedStatement st) {
+		try {
+			st.close();
+		} catch (SQLException e) {
+			// ignore
+		}
+	}
+
+	boolean isValid(int timeout) {
+		try {
+			return !conn.isClosed() && conn.isValid(timeout);
+		} catch (SQLException e) {
+			return false;
+		}
+	}
+
+	void destroy() {
+		synchronized (statements) {
+			statements.clear();
+		}
+		try {
+			conn.close();
+		} catch (SQLException e) {
+			// ignore
+		}
+	}
+
+	/**
+	 * Returns connection to the pool.
+	 */
+	@Override
+	public void close() {
+		pool.release(this);
+	}
+
+	/*
+	 * Handle on a cached statement: close() returns it to the cache.
+	 */
+	private class CachedStatement implements InvocationHandler {
+
+		private final String sql;
+		private final PreparedStatement st;
+		private boolean closed;
+
+		CachedStatement(String sql, PreparedStatement st) {
+			this.sql = sql;
+			this.st = st;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args)
+				throws Throwable {
+			String name = method.getName();
+			if (name.equals("close")) {
+				if (!closed) {
+					closed = true;
+					giveBack(sql, st);
+				}
+				return null;
+			}
+			if (name.equals("isClosed")) {
+				return closed || st.isClosed();
+			}
+			if (closed) {
+				throw new SQLException("Statement is closed");
+			}
+			try {
+				return method.invoke(st, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		}
+	}
+}
@@ -0,0 +1,144 @@
+package org.mcv.app;
+
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jodd.proxetta.MethodInfo;
+import jodd.proxetta.ProxyAspect;
+import jodd.proxetta.impl.ProxyProxetta;
+import jodd.proxetta.pointcuts.ProxyPointcutSupport;
+
+/**
+ * @author Miguelc
+ *
+ * Proxy classes for Base subclasses, generated once per class and kept for
+ * the lifetime of the class. Classes woven at build time by {@link Weaver}
+ * are used when present.
+ */
+public class Proxies {
+
+	// typed array for the varargs of hasAnnotation
+	@SuppressWarnings("unchecked")
+	private static final Class<? extends Annotation>[] IGNORE = (Class<? extends Annotation>[]) new Class<?>[] { Ignore.class };
+
+	static final ProxyAspect FOR_SETTERS = new ProxyAspect(SetterAdvice.class,
+			new ProxyPointcutSupport() {
+				public boolean apply(MethodInfo methodInfo) {
+					return isPublic(methodInfo)
+							&& matchMethodName(methodInfo, "set*")
+							&& hasOneArgument(methodInfo)
+							&& !hasAnnotation(methodInfo, IGNORE);
+				}
+			});
+
+	static final ProxyAspect FOR_METHODS = new ProxyAspect(MethodAdvice.class,
+			new ProxyPointcutSupport() {
+				public boolean apply(MethodInfo methodInfo) {
+					if (hasReturnValue(methodInfo)
+							&& (matchMethodName(methodInfo, "get*") || (matchMethodName(
+									methodInfo, "is*")))
+							&& hasNoArguments(methodInfo)) {
+						// getter
+						return false;
+					}
+
+					if (matchMethodName(methodInfo, "set*")
+							&& hasOneArgument(methodInfo)) {
+						// setter
+						return false;
+					}
+					if (hasAnnotation(methodInfo, IGNORE)) {
+						return false;
+					}
+					return isPublic(methodInfo);
+				}
+			});
+
+	static final String WOVEN_SUFFIX = "$$Woven";
+
+	private static final ProxyProxetta PROXETTA = ProxyProxetta.withAspects(
+			FOR_SETTERS, FOR_METHODS).setVariableClassName(true);
+
+	private static final MethodType CONSTRUCTOR = MethodType.methodType(
+			void.class, String.class, Class.class);
+	private static final MethodType FACTORY = MethodType.methodType(
+			Base.class, String.class, Class.class);
+
+	// metrics
+	private static final AtomicLong defined = new AtomicLong();
+	private static final AtomicLong woven = new AtomicLong();
+
+	/*
+	 * (name, class) constructor of the proxy class, per target class.
+	 */
+	private static final ClassValue<MethodHandle> CONSTRUCTORS = new ClassValue<MethodHandle>() {
+		@Override
+		protected MethodHandle computeValue(Class<?> type) {
+			try {
+				Class<?> proxy = woven(type);
+				if (proxy != null) {
+					woven.incrementAndGet();
+				} else {
+					proxy = PROXETTA.builder(type).define();
+					defined.incrementAndGet();
+				}
+				return MethodHandles.publicLookup()
+						.findConstructor(proxy, CONSTRUCTOR).asType(FACTORY);
+			} catch (Exception e) {
+				throw new WrapperException(e);
+			}
+		}
+	};
+
+	private Proxies() {
+	}
+
+	private static Class<?> woven(Class<?> type) {
+		try {
+			Class<?> cls = Class.forName(type.getName() + WOVEN_SUFFIX, false,
+					type.getClassLoader());
+			return cls.getSuperclass() == type ? cls : null;
+		} catch (ClassNotFoundException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * New, empty proxy instance for a Base subclass.
+	 *
+	 * @param clazz	target class
+	 * @param name	object name
+	 * @return proxy
+	 */
+	@SuppressWarnings("unchecked")
+	static <T extends Base> T newInstance(Class<?> clazz, String name) {
+		try {
+			return (T) (Base) CONSTRUCTORS.get(clazz).invokeExact(name, clazz);
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable t) {
+			throw new WrapperException(t);
+		}
+	}
+
+	/**
+	 * Number of proxy classes defined so far.
+	 *
+	 * @return count
+	 */
+	public static long getDefined() {
+		return defined.get();
+	}
+
+	/**
+	 * Number of woven classes loaded so far.
+	 *
+	 * @return count
+	 */
+	public static long getWoven() {
+		return woven.get();
+	}
+}
@@ -0,0 +1,151 @@
+package org.mcv.app;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import lombok.Cleanup;
+
+/**
+ * @author Miguelc
+ *
+ * Versioned schema bootstrap.
+ *
+ * Each migration is applied once, in order, and recorded in SCHEMA_VERSION.
+ * Statements are idempotent, so databases created before SCHEMA_VERSION
+ * existed are brought up to date as well. New migrations go at the end.
+ */
+public class Schema {
+
+	static final String CREATE_SCHEMA_VERSION = "CREATE TABLE IF NOT EXISTS SCHEMA_VERSION ("
+			+ "VERSION integer PRIMARY KEY, "
+			+ "APPLIED timestamp, "
+			+ "DESCRIPTION nvarchar(256))";
+
+	static final List<Migration> MIGRATIONS = Arrays.asList(
+			// the tables as first released; later columns are added by later migrations
+			new Migration(1, "APPLICATION and LOGS tables",
+					"CREATE TABLE IF NOT EXISTS APPLICATION ("
+							+ "NAME nvarchar(1024), "
+							+ "CLASSNAME nvarchar(1024), "
+							+ "VERSION long, "
+							+ "PARENT long, "
+							+ "CHILDREN nvarchar(1024), "
+							+ "CREATED timestamp, "
+							+ "CURRENT boolean, "
+							+ "DELETED boolean, "
+							+ "JSON clob, "
+							+ "PRIMARY KEY (NAME, CLASSNAME, VERSION) )",
+					"CREATE TABLE IF NOT EXISTS LOGS ("
+							+ "NAME nvarchar(1024), "
+							+ "CLASSNAME nvarchar(1024), "
+							+ "STAMP timestamp, "
+							+ "THREAD nvarchar(256), "
+							+ "METHOD nvarchar(256), "
+							+ "METHODLINE integer, "
+							+ "METHODCLASS nvarchar(256), "
+							+ "CALLER nvarchar(256), "
+							+ "CALLERLINE integer, "
+							+ "CALLERCLASS nvarchar(256), "
+							+ "KIND integer, "
+							+ "OBJLIST clob, "
+							+ "MESSAGE nvarchar(1024))"),
+			new Migration(2, "Indexes for retrieve, getList and getLogs",
+					"CREATE INDEX IF NOT EXISTS IDX_APPLICATION_CURRENT ON APPLICATION (NAME, CLASSNAME, CURRENT, DELETED)",
+					"CREATE INDEX IF NOT EXISTS IDX_APPLICATION_LIST ON APPLICATION (CLASSNAME, CURRENT, DELETED, NAME)",
+					"CREATE INDEX IF NOT EXISTS IDX_LOGS_OBJECT ON LOGS (NAME, CLASSNAME, STAMP)",
+					"CREATE INDEX IF NOT EXISTS IDX_LOGS_STAMP ON LOGS (STAMP)"),
+			new Migration(3, "LOGS sequence number for keyset pagination",
+					"ALTER TABLE LOGS ADD COLUMN IF NOT EXISTS SEQ bigint AUTO_INCREMENT",
+					"CREATE INDEX IF NOT EXISTS IDX_LOGS_OBJECT_SEQ ON LOGS (NAME, CLASSNAME, STAMP, SEQ)",
+					"CREATE INDEX IF NOT EXISTS IDX_LOGS_STAMP_SEQ ON LOGS (STAMP, SEQ)",
+					"DROP INDEX IF EXISTS IDX_LOGS_OBJECT",
+					"DROP INDEX IF EXISTS IDX_LOGS_STAMP"),
+			new Migration(4, "STACKS table for deduplicated stack traces",
+					StackStore.CREATE_STACKS,
+					"ALTER TABLE LOGS ADD COLUMN IF NOT EXISTS STACKHASH char(32)"),
+			new Migration(5, "FORMAT and binary DATA columns for Smile and CBOR",
+					"ALTER TABLE APPLICATION ADD COLUMN IF NOT EXISTS FORMAT tinyint",
+					"ALTER TABLE APPLICATION ADD COLUMN IF NOT EXISTS DATA blob",
+					"ALTER TABLE LOGS ADD COLUMN IF NOT EXISTS FORMAT tinyint",
+					"ALTER TABLE LOGS ADD COLUMN IF NOT EXISTS OBJDATA blob"));
+
+	/**
+	 * A numbered list of DDL statements.
+	 */
+	static class Migration {
+		final int version;
+		final String description;
+		final List<String> statements;
+
+		Migration(int version, String description, String... statements) {
+			this.version = version;
+			this.description = description;
+			this.statements = Arrays.asList(statements);
+		}
+	}
+
+	/**
+	 * Applies all migrations newer than the database.
+	 *
+	 * @param conn	connection
+	 * @return applied migrations
+	 * @throws Exception
+	 */
+	static List<Migration> migrate(PooledConnection conn) throws Exception {
+		execute(conn, CREATE_SCHEMA_VERSION);
+		int current = version(conn);
+		List<Migration> applied = new ArrayList<>();
+		for (Migration migration : MIGRATIONS) {
+			if (migration.version <= current) {
+				continue;
+			}
+			for (String sql : migration.statements) {
+				execute(conn, sql);
+			}
+			try {
+				@Cleanup
+				PreparedStatement st = conn
+						.prepareStatement("INSERT INTO SCHEMA_VERSION (VERSION, APPLIED, DESCRIPTION) VALUES (?, ?, ?)");
+				st.setInt(1, migration.version);
+				st.setTimestamp(2, Timestamp.valueOf(LocalDateTime.now()));
+				st.setString(3, migration.description);
+				st.executeUpdate();
+				applied.add(migration);
+			} catch (Exception e) {
+				// migrated concurrently by another application
+				if (!Db.isDuplicateKey(e)) {
+					throw e;
+				}
+			}
+		}
+		return applied;
+	}
+
+	/**
+	 * Schema version of the database.
+	 *
+	 * @param conn	connection
+	 * @return version, 0 if none
+	 * @throws Exception
+	 */
+	static int version(PooledConnection conn) throws Exception {
+		@Cleanup
+		PreparedStatement st = conn
+				.prepareStatement("SELECT MAX(VERSION) AS HIGHEST FROM SCHEMA_VERSION");
+		@Cleanup
+		ResultSet rs = st.executeQuery();
+		return rs.next() ? rs.getInt("HIGHEST") : 0;
+	}
+
+	private static void execute(PooledConnection conn, String sql)
+			throws Exception {
+		@Cleanup
+		PreparedStatement st = conn.prepareStatement(sql);
+		st.executeUpdate();
+	}
+}
@@ -1,6 +1,5 @@
 package org.mcv.app;
 
-import java.lang.reflect.Method;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.List;
@@ -34,11 +33,12 @@ public class SetterAdvice implements ProxyAdvice {
 			return null;
 		}
 
-		// GET OLD VALUE
-		Object oldValue = getOldValue(base, info);
-		//base.debug("oldvalue = " + oldValue);
 		// LOGGING
-		log(base, info, oldValue);
+		if (base.isLogEnabled(Kind.SETTER)) {
+			// GET OLD VALUE
+			Object oldValue = getOldValue(base, info);
+			log(base, info, oldValue);
+		}
 
 		// INVOKE
 		ProxyTarget.invoke();
@@ -53,17 +53,8 @@ public class SetterAdvice implements ProxyAdvice {
 	private void log(Base base, ProxyTargetInfo info, Object oldValue) {
 		LogEntry log = new LogEntry();
 		
-		StackTraceElement[] elts = Thread.currentThread().getStackTrace();
-		int[] indices = SteUtils.findCalleeAndCaller(elts);
-		StackTraceElement caller = elts[indices[1]];
-		StackTraceElement callee = elts[indices[0]];
-		log.setCaller(SteUtils.cleanup(caller.getMethodName()));
-		log.setCallerClass(SteUtils.cleanup(caller.getClassName()));
-		log.setCallerLine(caller.getLineNumber());
+		CallerLocation.set(log, base.getApp().getCallerLocation().locate());
 		log.setKind(Kind.SETTER);
-		log.setMethod(SteUtils.cleanup(callee.getMethodName()));
-		log.setMethodClass(SteUtils.cleanup(callee.getClassName()));
-		log.setMethodLine(callee.getLineNumber());
 		Object newValue = info.arguments[0];
 		//base.debug("newvalue = " + newValue);
 		List<Object> list = new ArrayList<>();
@@ -78,18 +69,7 @@ public class SetterAdvice implements ProxyAdvice {
 	}
 
 	private Object getOldValue(Base base, ProxyTargetInfo info) {
-		try {
-			Method getterMethod = null;
-			String getter = "get" + info.targetMethodName.substring(3);
-			try {
-				getterMethod = ((Class<?>) info.targetClass).getMethod(getter);
-			} catch (NoSuchMethodException e) {
-				getter = "is" + info.targetMethodName.substring(2);
-				getterMethod = ((Class<?>) info.targetClass).getMethod(getter);
-			}
-			return getterMethod.invoke(base);
-		} catch (Exception e) {
-			return null;
-		}
+		return Getters.get(base, (Class<?>) info.targetClass,
+				info.targetMethodName);
 	}
 }
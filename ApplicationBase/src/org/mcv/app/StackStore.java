@@ -0,0 +1,264 @@
+package org.mcv.app;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.Cleanup;
+
+/**
+ * @author Miguelc
+ *
+ * Stores each distinct stack trace of WARN and ERROR entries once, in the
+ * STACKS table, keyed by its fingerprint. Log rows refer to it by STACKHASH
+ * instead of repeating the trace in OBJLIST; STACKS counts the occurrences.
+ */
+public class StackStore {
+
+	static final String CREATE_STACKS = "CREATE TABLE IF NOT EXISTS STACKS ("
+			+ "HASH char(32) PRIMARY KEY, "
+			+ "TRACE clob, "
+			+ "OCCURRENCES bigint, "
+			+ "FIRSTSEEN timestamp, "
+			+ "LASTSEEN timestamp)";
+
+	static final String UPDATE_STACK = "UPDATE STACKS SET OCCURRENCES = OCCURRENCES + ?, LASTSEEN = ? WHERE HASH = ?";
+
+	static final String INSERT_STACK = "INSERT INTO STACKS (HASH, TRACE, OCCURRENCES, FIRSTSEEN, LASTSEEN) VALUES (?, ?, ?, ?, ?)";
+
+	static final String SELECT_STACK = "SELECT TRACE FROM STACKS WHERE HASH = ?";
+
+	static final String SELECT_TOP_STACKS = "SELECT HASH, OCCURRENCES FROM STACKS ORDER BY OCCURRENCES DESC LIMIT ?";
+
+	// traces kept in memory for reading, cleared when full
+	private static final int MAX_CACHED = 1024;
+
+	private final ConnectionPool pool;
+	private final ConcurrentMap<String, List<Object>> traces = new ConcurrentHashMap<>();
+	// hashes known to be in STACKS, assuming no other application clears it
+	private final Set<String> stored = ConcurrentHashMap.newKeySet();
+
+	// metrics
+	private final AtomicLong inserted = new AtomicLong();
+	private final AtomicLong deduplicated = new AtomicLong();
+
+	StackStore(ConnectionPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * A stack trace of a log entry and its fingerprint.
+	 */
+	static class Stack {
+		final String hash;
+		final List<Object> trace;
+
+		Stack(String hash, List<Object> trace) {
+			this.hash = hash;
+			this.trace = trace;
+		}
+	}
+
+	/**
+	 * The stack trace of an entry, if it has one.
+	 *
+	 * @param entry
+	 * @return stack, or null
+	 */
+	static Stack of(LogEntry entry) {
+		if ((entry.kind != LogEntry.Kind.WARN && entry.kind != LogEntry.Kind.ERROR)
+				|| entry.objList == null || entry.objList.isEmpty()
+				|| !(entry.objList.get(0) instanceof StackTraceElement)) {
+			return null;
+		}
+		StringBuilder sb = new StringBuilder();
+		for (Object ste : entry.objList) {
+			sb.append(ste).append('\n');
+		}
+		return new Stack(Fingerprint.of(sb.toString()).toString(), entry.objList);
+	}
+
+	/**
+	 * Records occurrences of stack traces, storing the ones not seen before.
+	 *
+	 * @param conn		connection, in the transaction of the log rows
+	 * @param stacks	stacks of the log rows
+	 * @throws Exception
+	 */
+	void record(PooledConnection conn, List<Stack> stacks) throws Exception {
+		if (stacks.isEmpty()) {
+			return;
+		}
+		// one update per distinct trace
+		Map<String, Stack> distinct = new LinkedHashMap<>();
+		Map<String, Long> counts = new LinkedHashMap<>();
+		for (Stack stack : stacks) {
+			distinct.putIfAbsent(stack.hash, stack);
+			counts.merge(stack.hash, 1L, Long::sum);
+		}
+		Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+		@Cleanup
+		PreparedStatement update = conn.prepareStatement(UPDATE_STACK);
+		for (Stack stack : distinct.values()) {
+			long count = counts.get(stack.hash);
+			boolean written = false;
+			if (!stored.contains(stack.hash) || !update(update, stack, count, now)) {
+				written = insert(conn, update, stack, count, now);
+			}
+			deduplicated.addAndGet(written ? count - 1 : count);
+		}
+	}
+
+	private boolean update(PreparedStatement st, Stack stack, long count,
+			Timestamp now) throws Exception {
+		st.setLong(1, count);
+		st.setTimestamp(2, now);
+		st.setString(3, stack.hash);
+		return st.executeUpdate() > 0;
+	}
+
+	/*
+	 * Inserts a trace, or updates it if it is there after all.
+	 *
+	 * @return whether the trace was inserted
+	 */
+	private boolean insert(PooledConnection conn, PreparedStatement update,
+			Stack stack, long count, Timestamp now) throws Exception {
+		boolean done = false;
+		// may have been stored before this application started
+		if (!update(update, stack, count, now)) {
+			try {
+				@Cleanup
+				PreparedStatement st = conn.prepareStatement(INSERT_STACK);
+				st.setString(1, stack.hash);
+				st.setString(2, Application.toJson(stack.trace));
+				st.setLong(3, count);
+				st.setTimestamp(4, now);
+				st.setTimestamp(5, now);
+				st.executeUpdate();
+				inserted.incrementAndGet();
+				done = true;
+			} catch (Exception e) {
+				// inserted concurrently by another application
+				if (!Db.isDuplicateKey(e)) {
+					throw e;
+				}
+				update(update, stack, count, now);
+			}
+		}
+		stored.add(stack.hash);
+		return done;
+	}
+
+	/**
+	 * A stored stack trace.
+	 *
+	 * @param hash
+	 * @return trace, as StackTraceElements, or an empty list if not found
+	 */
+	public List<Object> trace(String hash) {
+		List<Object> trace = traces.get(hash);
+		if (trace != null) {
+			return trace;
+		}
+		try {
+			@Cleanup
+			PooledConnection conn = pool.checkout();
+			@Cleanup
+			PreparedStatement st = conn.prepareStatement(SELECT_STACK);
+			st.setString(1, hash);
+			@Cleanup
+			ResultSet rs = st.executeQuery();
+			trace = new ArrayList<>();
+			if (rs.next()) {
+				for (Object obj : Application.fromJson(rs.getString("TRACE"),
+						new ArrayList<>())) {
+					trace.add(element(obj));
+				}
+			}
+		} catch (Exception e) {
+			throw new WrapperException(e);
+		}
+		if (traces.size() >= MAX_CACHED) {
+			traces.clear();
+		}
+		traces.put(hash, trace);
+		return trace;
+	}
+
+	/**
+	 * Most frequent stack traces.
+	 *
+	 * @param limit
+	 * @return occurrences per hash, most frequent first
+	 */
+	public Map<String, Long> top(int limit) {
+		Map<String, Long> top = new LinkedHashMap<>();
+		try {
+			@Cleanup
+			PooledConnection conn = pool.checkout();
+			@Cleanup
+			PreparedStatement st = conn.prepareStatement(SELECT_TOP_STACKS);
+			st.setInt(1, limit);
+			@Cleanup
+			ResultSet rs = st.executeQuery();
+			while (rs.next()) {
+				top.put(rs.getString("HASH"), rs.getLong("OCCURRENCES"));
+			}
+			return top;
+		} catch (Exception e) {
+			throw new WrapperException(e);
+		}
+	}
+
+	/**
+	 * A stack trace element, from its JSON form if needed.
+	 *
+	 * @param obj
+	 * @return element, or obj if not a stack trace element
+	 */
+	static Object element(Object obj) {
+		if (obj instanceof Map) {
+			@SuppressWarnings("unchecked")
+			Map<String, Object> map = (Map<String, Object>) obj;
+			return new StackTraceElement((String) map.get("declaringClass"),
+					(String) map.get("methodName"), (String) map.get("fileName"),
+					(Integer) map.get("lineNumber"));
+		}
+		return obj;
+	}
+
+	/**
+	 * Forgets the cached traces, after STACKS was cleared.
+	 */
+	void clear() {
+		traces.clear();
+		stored.clear();
+	}
+
+	/*
+	 * Metrics.
+	 */
+	public long getInserted() {
+		return inserted.get();
+	}
+
+	public long getDeduplicated() {
+		return deduplicated.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("StackStore(inserted=%d, deduplicated=%d)",
+				getInserted(), getDeduplicated());
+	}
+}
@@ -10,27 +10,48 @@ public class SteUtils {
 	}
 
 	public static int[] findCalleeAndCaller(StackTraceElement[] elts) {
+		return findCalleeAndCaller(elts, 3);
+	}
+
+	public static int[] findCalleeAndCaller(StackTraceElement[] elts, int start) {
 		int callee = 0, caller = 0;
-		String calleeName = null;
-		for(int i=3; i < elts.length; i++) {
+		Finder finder = new Finder();
+		for(int i=start; i < elts.length; i++) {
+			int step = finder.step(elts[i].getMethodName());
+			if(step == Finder.CALLEE) {
+				callee = i;
+			} else if(step == Finder.CALLER) {
+				caller = i;
+				break;
+			}
+		}
+		return new int[] {callee,caller};
+	}
+
+	/**
+	 * Finds callee and caller one frame at a time, innermost first: the callee
+	 * is the first method that is not a logging method (deepest of a run with
+	 * the same name), the caller the next one with another name.
+	 */
+	public static class Finder {
+		public static final int SKIP = 0, CALLEE = 1, CALLER = 2;
+
+		private String calleeName;
+
+		public int step(String methodName) {
+			String name = cleanup(methodName);
 			if(calleeName == null) {
-				if(isNoLoggingMethod(cleanup(elts[i].getMethodName()))) {
-					callee = i;
-					calleeName = cleanup(elts[i].getMethodName());
-				}
-			} else {
-				if(!cleanup(elts[i].getMethodName()).equals(calleeName)) {
-					if(isNoLoggingMethod(cleanup(elts[i].getMethodName()))) {
-						caller = i;
-						break;
-					}
-				} else {
-					callee = i;
-					calleeName = cleanup(elts[i].getMethodName());
+				if(isNoLoggingMethod(name)) {
+					calleeName = name;
+					return CALLEE;
 				}
+				return SKIP;
+			}
+			if(name.equals(calleeName)) {
+				return CALLEE;
 			}
+			return isNoLoggingMethod(name) ? CALLER : SKIP;
 		}
-		return new int[] {callee,caller};
 	}
 
 	public static boolean isNoLoggingMethod(String name) {
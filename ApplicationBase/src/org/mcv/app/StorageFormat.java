@@ -0,0 +1,159 @@
+package org.mcv.app;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+/**
+ * @author Miguelc
+ *
+ * Format of the serialized objects in the APPLICATION and LOGS tables, set by
+ * app.storage.format. JSON is stored as text in the JSON and OBJLIST columns,
+ * Smile and CBOR as binary in the DATA and OBJDATA columns. The FORMAT column
+ * of each row tells which, so rows written with different settings can be
+ * read side by side; compressed rows are described in {@link Compressor}.
+ * Application.toJson is text JSON whatever the format.
+ */
+public enum StorageFormat {
+
+	JSON(null), SMILE(new SmileFactory()), CBOR(new CBORFactory());
+
+	private final JsonFactory factory;
+
+	private StorageFormat(JsonFactory factory) {
+		this.factory = factory;
+	}
+
+	/**
+	 * Format of a FORMAT column value, without the compression bits.
+	 *
+	 * @param code
+	 * @return format
+	 */
+	public static StorageFormat of(int code) {
+		return values()[code];
+	}
+
+	/**
+	 * Value of the FORMAT column.
+	 *
+	 * @return code
+	 */
+	public int code() {
+		return ordinal();
+	}
+
+	/**
+	 * Serializes an object, with the generated codec of its class if it has
+	 * one.
+	 *
+	 * @param obj
+	 * @return payload
+	 */
+	public Payload encode(Object obj) {
+		if (this == JSON) {
+			return new Payload(this, Application.toJson(obj), null);
+		}
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+			try (JsonGenerator gen = factory.createGenerator(out)) {
+				// fields without a direct encoding are written by the mapper
+				gen.setCodec(Application.mapper);
+				Codecs.write(gen, obj);
+			}
+			return new Payload(this, null, out.toByteArray());
+		} catch (IOException e) {
+			throw new WrapperException(e);
+		}
+	}
+
+	/**
+	 * An object serialized in a storage format: JSON text, or the bytes of a
+	 * binary format.
+	 */
+	public static final class Payload {
+		final StorageFormat format;
+		final String json;
+		final byte[] data;
+
+		Payload(StorageFormat format, String json, byte[] data) {
+			this.format = format;
+			this.json = json;
+			this.data = data;
+		}
+
+		/**
+		 * Deserializes the payload, as Application.fromJson does.
+		 *
+		 * @param obj	Template object; Base objects are read into it
+		 * @return The deserialized object
+		 */
+		public <T> T decode(T obj) {
+			if (json != null) {
+				return Application.fromJson(json, obj);
+			}
+			try (JsonParser p = format.factory.createParser(data)) {
+				p.setCodec(Application.mapper);
+				p.nextToken();
+				if (obj instanceof Base) {
+					return Codecs.read(p, obj);
+				}
+				return Codecs.reader(obj != null ? obj.getClass() : Object.class)
+						.readValue(p);
+			} catch (IOException e) {
+				throw new WrapperException(e);
+			}
+		}
+
+		/**
+		 * The payload as JSON text; binary formats are converted token by
+		 * token, without binding to objects.
+		 *
+		 * @return JSON
+		 */
+		public String toJson() {
+			if (json != null) {
+				return json;
+			}
+			try (JsonParser p = format.factory.createParser(data)) {
+				StringWriter sw = new StringWriter(data.length * 2);
+				try (JsonGenerator gen = Application.mapper.getFactory()
+						.createGenerator(sw)) {
+					p.nextToken();
+					gen.copyCurrentStructure(p);
+				}
+				return sw.toString();
+			} catch (IOException e) {
+				throw new WrapperException(e);
+			}
+		}
+
+		/**
+		 * Fingerprint of the stored form.
+		 *
+		 * @return fingerprint
+		 */
+		public Fingerprint fingerprint() {
+			return json != null ? Fingerprint.of(json) : Fingerprint.of(data);
+		}
+
+		public StorageFormat getFormat() {
+			return format;
+		}
+
+		/**
+		 * Stored size: characters of JSON, bytes of binary formats.
+		 *
+		 * @return size
+		 */
+		public int size() {
+			return json != null ? json.length() : data.length;
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package org.mcv.app;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToLongFunction;
+
+/**
+ * @author Miguelc
+ *
+ * Hands out version numbers per object from memory.
+ *
+ * Each counter is seeded once from the highest version in the database, so
+ * numbering continues correctly after a restart. If another writer got there
+ * first, the caller sees a duplicate key, resets the counter and retries.
+ */
+public class VersionAllocator {
+
+	private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<>();
+	private final ToLongFunction<Base> seed;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param seed	highest stored version of an object
+	 */
+	public VersionAllocator(ToLongFunction<Base> seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * Next version number of an object.
+	 *
+	 * @param base
+	 * @return version number
+	 */
+	public long next(Base base) {
+		AtomicLong counter = counters.get(Db.key(base));
+		if (counter == null) {
+			counter = counters.computeIfAbsent(Db.key(base),
+					k -> new AtomicLong(seed.applyAsLong(base)));
+		}
+		return counter.incrementAndGet();
+	}
+
+	/**
+	 * A version was stored by other means.
+	 *
+	 * @param base
+	 * @param version
+	 */
+	public void observe(Base base, long version) {
+		AtomicLong counter = counters.get(Db.key(base));
+		if (counter != null) {
+			counter.accumulateAndGet(version, Math::max);
+		}
+	}
+
+	/**
+	 * Forget the counter of an object; it is seeded again on next use.
+	 *
+	 * @param base
+	 */
+	public void reset(Base base) {
+		counters.remove(Db.key(base));
+	}
+
+	/**
+	 * Forget all counters.
+	 */
+	public void clear() {
+		counters.clear();
+	}
+}
@@ -0,0 +1,116 @@
+package org.mcv.app;
+
+import java.io.File;
+import java.lang.reflect.Modifier;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import jodd.proxetta.ProxettaBuilder;
+import jodd.proxetta.impl.ProxyProxetta;
+import lombok.Cleanup;
+
+/**
+ * @author Miguelc
+ *
+ * Build-time weaving of SetterAdvice and MethodAdvice.
+ *
+ * Writes a proxy class named Xxx$$Woven for every Base subclass Xxx found
+ * in a classes directory, to that directory or to outputDir, which must then
+ * be on the classpath too. At runtime {@link Proxies} loads these instead of
+ * generating proxy classes. Run after compiling, see the weave task in
+ * build.gradle:
+ *
+ * java org.mcv.app.Weaver classesDir [outputDir]
+ */
+public class Weaver {
+
+	private static final ProxyProxetta PROXETTA = ProxyProxetta
+			.withAspects(Proxies.FOR_SETTERS, Proxies.FOR_METHODS)
+			.setClassNameSuffix(Proxies.WOVEN_SUFFIX);
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.out.println("Usage: Weaver classesDir [outputDir]");
+			System.exit(1);
+		}
+		File classes = new File(args[0]);
+		File output = args.length > 1 ? new File(args[1]) : classes;
+		List<String> woven = weave(classes, output);
+		System.out.println("Woven " + woven.size() + " classes into " + output);
+	}
+
+	/**
+	 * Weaves all Base subclasses in a directory.
+	 *
+	 * @param classes	classes directory
+	 * @param output	where to write woven classes
+	 * @return names of the woven classes
+	 * @throws Exception
+	 */
+	static List<String> weave(File classes, File output) throws Exception {
+		List<String> woven = new ArrayList<>();
+		@Cleanup
+		URLClassLoader loader = new URLClassLoader(
+				new URL[] { classes.toURI().toURL() },
+				Weaver.class.getClassLoader());
+		Path root = classes.toPath();
+		List<Path> files;
+		try (Stream<Path> walk = Files.walk(root)) {
+			files = walk.filter(p -> p.toString().endsWith(".class"))
+					.collect(Collectors.toList());
+		}
+		for (Path file : files) {
+			String path = root.relativize(file).toString();
+			String className = path.substring(0, path.length() - 6)
+					.replace(File.separatorChar, '.');
+			if (className.contains("$$")) {
+				// generated
+				continue;
+			}
+			Class<?> cls = Class.forName(className, false, loader);
+			byte[] bytes = weavable(cls) ? weave(cls) : null;
+			if (bytes == null) {
+				continue;
+			}
+			File target = new File(output, cls.getName().replace('.', '/')
+					+ Proxies.WOVEN_SUFFIX + ".class");
+			target.getParentFile().mkdirs();
+			Files.write(target.toPath(), bytes);
+			woven.add(cls.getName() + Proxies.WOVEN_SUFFIX);
+		}
+		return woven;
+	}
+
+	/**
+	 * Bytecode of the woven class for a Base subclass.
+	 *
+	 * @param cls	Base subclass
+	 * @return bytecode, null if there is nothing to weave
+	 */
+	static byte[] weave(Class<?> cls) {
+		ProxettaBuilder builder = PROXETTA.builder(cls);
+		byte[] bytes = builder.create();
+		return builder.isProxyApplied() ? bytes : null;
+	}
+
+	private static boolean weavable(Class<?> cls) {
+		if (!Base.class.isAssignableFrom(cls)
+				|| !Modifier.isPublic(cls.getModifiers())
+				|| Modifier.isAbstract(cls.getModifiers())
+				|| Modifier.isFinal(cls.getModifiers())) {
+			return false;
+		}
+		try {
+			cls.getConstructor(String.class, Class.class);
+			return true;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,207 @@
+package org.mcv.app;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @author Miguelc
+ *
+ * Write-behind for Db.store().
+ *
+ * Dirty objects are queued, one slot per object, and a background thread
+ * stores them all in a single transaction at most maxStaleness milliseconds
+ * later. Several stores of the same object in that window become one version.
+ */
+public class WriteBehind implements Runnable {
+
+	private final Db db;
+	private final long maxStalenessNanos;
+	private final Map<String, Base> dirty = new LinkedHashMap<>();
+	private final Object flushLock = new Object();
+	private final Thread thread;
+	private volatile boolean running = true;
+	private final Thread shutdownHook = new Thread(this::flush);
+
+	// metrics
+	private final AtomicLong queued = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicLong stored = new AtomicLong();
+	private final AtomicLong flushes = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+
+	/**
+	 * Constructor. Starts the flusher thread.
+	 *
+	 * @param db					database
+	 * @param name					application name
+	 * @param maxStalenessMillis	maximum delay before a change is stored
+	 */
+	public WriteBehind(Db db, String name, long maxStalenessMillis) {
+		this.db = db;
+		this.maxStalenessNanos = TimeUnit.MILLISECONDS
+				.toNanos(maxStalenessMillis);
+		thread = new Thread(this, "WriteBehind-" + name);
+		thread.setDaemon(true);
+		thread.start();
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
+	}
+
+	/**
+	 * Queues an object for storing.
+	 *
+	 * @param base
+	 */
+	public void enqueue(Base base) {
+		synchronized (dirty) {
+			if (dirty.put(Db.key(base), base) == null) {
+				queued.incrementAndGet();
+			} else {
+				coalesced.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Forgets pending changes of an object.
+	 *
+	 * @param base
+	 */
+	public void discard(Base base) {
+		synchronized (flushLock) {
+			synchronized (dirty) {
+				dirty.remove(Db.key(base));
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			LockSupport.parkNanos(this, maxStalenessNanos);
+			try {
+				flush();
+			} catch (Exception e) {
+				// logged and queued again, retried on the next round
+			}
+		}
+	}
+
+	/**
+	 * Stores all pending objects.
+	 */
+	public void flush() {
+		synchronized (flushLock) {
+			List<Base> batch;
+			synchronized (dirty) {
+				batch = new ArrayList<>(dirty.values());
+				dirty.clear();
+			}
+			store(batch);
+		}
+	}
+
+	/**
+	 * Stores one object, if pending. Waits for a flush in progress, which may
+	 * include it.
+	 *
+	 * @param key	object key
+	 */
+	public void flush(String key) {
+		synchronized (flushLock) {
+			Base base;
+			synchronized (dirty) {
+				base = dirty.remove(key);
+			}
+			if (base != null) {
+				List<Base> batch = new ArrayList<>(1);
+				batch.add(base);
+				store(batch);
+			}
+		}
+	}
+
+	/*
+	 * A batch that fails is queued again, behind changes made since, and the
+	 * failure is passed on to the caller.
+	 */
+	private void store(List<Base> batch) {
+		if (batch.isEmpty()) {
+			return;
+		}
+		try {
+			stored.addAndGet(db.storeAll(batch));
+			flushes.incrementAndGet();
+		} catch (Exception e) {
+			failed.addAndGet(batch.size());
+			synchronized (dirty) {
+				for (Base base : batch) {
+					dirty.putIfAbsent(Db.key(base), base);
+				}
+			}
+			db.log().error(e, "Error storing %d objects, queued again",
+					batch.size());
+			throw new WrapperException(e);
+		}
+	}
+
+	/**
+	 * Stops the flusher thread after storing all pending objects.
+	 */
+	public void close() {
+		try {
+			Runtime.getRuntime().removeShutdownHook(shutdownHook);
+		} catch (IllegalStateException e) {
+			// shutting down
+		}
+		running = false;
+		LockSupport.unpark(thread);
+		try {
+			thread.join(TimeUnit.NANOSECONDS.toMillis(maxStalenessNanos) + 1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		flush();
+	}
+
+	/*
+	 * Metrics.
+	 */
+	public int getPending() {
+		synchronized (dirty) {
+			return dirty.size();
+		}
+	}
+
+	public long getQueued() {
+		return queued.get();
+	}
+
+	public long getCoalesced() {
+		return coalesced.get();
+	}
+
+	public long getStored() {
+		return stored.get();
+	}
+
+	public long getFlushes() {
+		return flushes.get();
+	}
+
+	public long getFailed() {
+		return failed.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"WriteBehind(pending=%d, queued=%d, coalesced=%d, stored=%d, flushes=%d, failed=%d)",
+				getPending(), getQueued(), getCoalesced(), getStored(),
+				getFlushes(), getFailed());
+	}
+}
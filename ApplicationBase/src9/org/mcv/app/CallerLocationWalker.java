@@ -0,0 +1,45 @@
+package org.mcv.app;
+
+import java.lang.StackWalker.StackFrame;
+
+/**
+ * @author Miguelc
+ *
+ * WALKER caller location, Java 9 version: walks frames lazily and stops at
+ * the caller, without filling in the rest of the stack.
+ */
+class CallerLocationWalker extends CallerLocation {
+
+	private static final StackWalker WALKER = StackWalker.getInstance();
+
+	CallerLocationWalker() {
+		super(Mode.WALKER);
+	}
+
+	static boolean usesStackWalker() {
+		return true;
+	}
+
+	@Override
+	StackTraceElement[] locate() {
+		return WALKER.walk(frames -> {
+			SteUtils.Finder finder = new SteUtils.Finder();
+			StackFrame[] callee = new StackFrame[1];
+			// skip our own frames, the logging method and its caller
+			return frames.dropWhile(f -> isLocator(f.getClassName()))
+					.skip(2)
+					.filter(f -> {
+						int step = finder.step(f.getMethodName());
+						if (step == SteUtils.Finder.CALLEE) {
+							callee[0] = f;
+						}
+						return step == SteUtils.Finder.CALLER;
+					})
+					.findFirst()
+					.map(caller -> new StackTraceElement[] {
+							callee[0].toStackTraceElement(),
+							caller.toStackTraceElement() })
+					.orElse(null);
+		});
+	}
+}
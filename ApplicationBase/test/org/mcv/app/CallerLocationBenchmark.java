@@ -0,0 +1,57 @@
+package org.mcv.app;
+
+import org.mcv.app.CallerLocation.Mode;
+
+/**
+ * @author Miguelc
+ *
+ * Cost of locating the caller per log call, for each app.callerLocation mode.
+ * Locates from under a stack of the given depth, as a log call deep in an
+ * application would.
+ *
+ * java org.mcv.app.CallerLocationBenchmark [calls] [depth]
+ */
+public class CallerLocationBenchmark {
+
+	static volatile Object sink;
+
+	public static void main(String[] args) {
+		int calls = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		int depth = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+		System.out.println("StackWalker: " + CallerLocationWalker.usesStackWalker()
+				+ ", depth: " + depth);
+		for (Mode mode : Mode.values()) {
+			CallerLocation location = CallerLocation.of(mode, 100);
+			// warm up
+			nested(location, calls / 10, depth);
+			long start = System.nanoTime();
+			nested(location, calls, depth);
+			long nanos = System.nanoTime() - start;
+			System.out.println(String.format("%-8s %8.1f ns/call", mode,
+					(double) nanos / calls));
+		}
+	}
+
+	private static void nested(CallerLocation location, int calls, int depth) {
+		if (depth > 0) {
+			nested(location, calls, depth - 1);
+		} else {
+			loop(location, calls);
+		}
+	}
+
+	private static void loop(CallerLocation location, int calls) {
+		for (int i = 0; i < calls; i++) {
+			sink = debug(location);
+		}
+	}
+
+	// same frames as Base.debug and Base.log
+	private static StackTraceElement[] debug(CallerLocation location) {
+		return log(location);
+	}
+
+	private static StackTraceElement[] log(CallerLocation location) {
+		return location.locate();
+	}
+}
@@ -0,0 +1,61 @@
+package org.mcv.app;
+
+/**
+ * @author Miguelc
+ *
+ * Cost of loading an object from the DB: reading it straight into the proxy
+ * (one JSON parse) against reading it and then copying it into the proxy
+ * with setProxies (two parses, as loads used to).
+ *
+ * java org.mcv.app.LoadBenchmark [objects] [rounds]
+ */
+public class LoadBenchmark {
+
+	static volatile Object sink;
+
+	public static void main(String[] args) {
+		int objects = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		Application app = new Application("bench");
+		app.clear();
+		// measure the loads, not the logging
+		app.getLog().setLogLevel(LogEntry.Kind.NONE);
+		app.getLog().setDbLogLevel(LogEntry.Kind.NONE);
+		for (int i = 0; i < objects; i++) {
+			BaseSub base = app.create("load" + i, BaseSub.class);
+			base.setMsg("Message " + i);
+		}
+		app.flush();
+		// warm up
+		load(app, objects, rounds / 2, true);
+		load(app, objects, rounds / 2, false);
+		for (int i = 0; i < 2; i++) {
+			report("copy into proxy", load(app, objects, rounds, true), objects
+					* rounds);
+			report("read into proxy", load(app, objects, rounds, false),
+					objects * rounds);
+		}
+		app.getDb().close();
+	}
+
+	private static long load(Application app, int objects, int rounds,
+			boolean copy) {
+		long start = System.nanoTime();
+		for (int r = 0; r < rounds; r++) {
+			for (int i = 0; i < objects; i++) {
+				if (copy) {
+					BaseSub base = app.getDb().retrieve("load" + i, BaseSub.class, true);
+					sink = app.setProxies(base);
+				} else {
+					sink = app.getDb().retrieve("load" + i, BaseSub.class, false);
+				}
+			}
+		}
+		return System.nanoTime() - start;
+	}
+
+	private static void report(String what, long nanos, int loads) {
+		System.out.println(String.format("%-16s %8.1f us/object", what,
+				nanos / 1000.0 / loads));
+	}
+}
@@ -5,8 +5,15 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.File;
+import java.sql.Statement;
+import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -469,4 +476,904 @@ public class TestApplication {
 		}
 	}
 
+
+	@Test
+	public void testConcurrentStore() {
+		Application app = mkApp();
+		Base log = app.create();
+		try {
+			List<Thread> threads = new ArrayList<>();
+			List<Throwable> errors = new ArrayList<>();
+			for (int i = 0; i < 4; i++) {
+				final int n = i;
+				threads.add(new Thread(() -> {
+					try {
+						BaseSub base = app.create("base" + n, BaseSub.class);
+						base.setMsg("Changed");
+						base.setMsg("Changed again");
+					} catch (Throwable t) {
+						synchronized (errors) {
+							errors.add(t);
+						}
+					}
+				}));
+			}
+			for (Thread t : threads) {
+				t.start();
+			}
+			for (Thread t : threads) {
+				t.join();
+			}
+			assertTrue(errors.toString(), errors.isEmpty());
+			for (int i = 0; i < 4; i++) {
+				BaseSub base = app.create("base" + i, BaseSub.class);
+				assertEquals(3, base.getVersion());
+				assertEquals("Changed again", base.getMsg());
+			}
+			// no log writes in flight
+			app.flush();
+			assertEquals(0, app.getPool().getActive());
+			assertTrue(app.getPool().getCheckouts() > 0);
+			assertTrue(app.getPool().getStatementHits() > 0);
+			System.out.println(app.getPool());
+		} catch (Exception e) {
+			Throwable t = WrapperException.unwrap(e);
+			log.error(t.toString(), t);
+			fail(t.toString());
+		}
+	}
+
+	@Test
+	public void testAsyncLogs() {
+		Application app = mkApp();
+		Base log = app.create();
+		try {
+			BaseSub base = app.create("base", BaseSub.class);
+			for (int i = 0; i < 250; i++) {
+				base.info("Message %d", i);
+			}
+			// reading flushes pending entries first
+			long infos = base.getLogs().stream()
+					.filter(entry -> entry.getKind() == LogEntry.Kind.INFO)
+					.count();
+			assertEquals(250, infos);
+			LogWriter writer = app.getLogWriter();
+			if (writer != null) {
+				assertEquals(0, writer.getDropped());
+				assertTrue(writer.getBatches() > 0);
+				System.out.println(writer);
+			}
+		} catch (Exception e) {
+			Throwable t = WrapperException.unwrap(e);
+			log.error(t.toString(), t);
+			fail(t.toString());
+		}
+	}
+
+	@Test
+	public void testWriteBehind() {
+		Application app = mkApp();
+		Base log = app.create();
+		try {
+			BaseSub base = app.create("base", BaseSub.class);
+			app.setWriteBehind(60000);
+			base.setMsg("Changed");
+			base.setMsg("Changed again");
+			base.setMsg("Changed yet again");
+			// nothing stored yet
+			assertEquals(1, base.getVersion());
+			assertEquals(1, app.getWriteBehind().getPending());
+			// the live object has the pending changes
+			assertTrue(base == app.create("base", BaseSub.class));
+			// reading stores pending changes first, as one version
+			List<BaseSub> versions = base.getVersions();
+			assertEquals(2, versions.size());
+			assertEquals("Changed yet again", versions.get(1).getMsg());
+			assertEquals(2, base.getVersion());
+			base.setMsg("Keep on changing");
+			app.flush();
+			assertEquals(3, base.getVersion());
+			System.out.println(app.getWriteBehind());
+			app.setWriteBehind(0);
+		} catch (Exception e) {
+			Throwable t = WrapperException.unwrap(e);
+			log.error(t.toString(), t);
+			fail(t.toString());
+		}
+	}
+
+	@Test
+	public void testVersionJsonImmutable() {
+		Application app = mkApp();
+		Base log = app.create();
+		try {
+			BaseSub base = app.create("base", BaseSub.class);
+			String json = base.getJson();
+			base.setMsg("Changed");
+			base.setMsg("Changed again");
+			List<BaseSub> versions = base.getVersions();
+			// stored JSON of version 1 is untouched, links come from the columns
+			assertEquals(json, versions.get(0).getJson());
+			assertEquals(1, versions.get(0).getChildren().size());
+			assertEquals(2L, (long) versions.get(0).getChildren().get(0));
+			assertEquals(3L, (long) versions.get(1).getChildren().get(0));
+			assertTrue(versions.get(2).getChildren().isEmpty());
+		} catch (Exception e) {
+			Throwable t = WrapperException.unwrap(e);
+			log.error(t.toString(), t);
+			fail(t.toString());
+		}
+	}
+
+	@Test
+	public void testVersionCounterRecovery() {
+		Application app = mkApp();
+		Base log = app.create();
+		try {
+			BaseSub base = app.create("base", BaseSub.class);
+			base.setMsg("Changed");
+			assertEquals(2, base.getVersion());
+			// another writer on the same database takes version 3
+			Application other = new Application("app");
+			BaseSub copy = other.create("base", BaseSub.class);
+			copy.setMsg("Changed elsewhere");
+			assertEquals(3, copy.getVersion());
+			// our counter is behind: duplicate key, reload, retry
+			base.setMsg("Changed again");
+			assertEquals(4, base.getVersion());
+		} catch (Exception e) {
+			Throwable t = WrapperException.unwrap(e);
+			log.error(t.toString(), t);
+			fail(t.toString());
+		}
+	}
+
+	@Test
+	public void testSchema() {
+		Application app = mkApp();
+		Base log = app.create();
+		try {
+			assertEquals(Schema.MIGRATIONS.size(), app.getSchemaVersion());
+			List<String> indexes = app.getIndexes();
+			System.out.println(indexes);
+			assertTrue(indexes.contains("APPLICATION.IDX_APPLICATION_LIST(CLASSNAME, CURRENT, DELETED, NAME)"));
+			Map<String, String> plans = app.explain();
+			for (Map.Entry<String, String> plan : plans.entrySet()) {
+				System.out.println(plan.getKey() + ": " + plan.getValue());
+			}
+			assertTrue(plans.get("getList").contains("IDX_APPLICATION_LIST"));
+			assertTrue(plans.get("getLogs").contains("IDX_LOGS_OBJECT"));
+			// migrating again is a no-op
+			assertEquals(Schema.MIGRATIONS.size(), app.migrate());
+			app.createAppTable();
+			app.createLogsTable();
+			assertEquals(Schema.MIGRATIONS.size(), app.getSchemaVersion());
+		} catch (Exception e) {
+			Throwable t = WrapperException.unwrap(e);
+			log.error(t.toString(), t);
+			fail(t.toString());
+		}
+	}
+
+	@Test
+	public void testStreams() {
+		Application app = mkApp();
+		Base log = app.create();
+		try {
+			for (int i = 0; i < 5; i++) {
+				app.create("base" + i, BaseSub.class);
+			}
+			try (Stream<BaseSub> stream = app.streamList(BaseSub.class)) {
+				List<String> names = stream.map(Base::getName).collect(
+						Collectors.toList());
+				assertEquals(Arrays.asList("base0", "base1", "base2", "base3",
+						"base4"), names);
+			}
+			// stop half-way
+			try (Stream<LogEntry> stream = app.streamAllLogs()) {
+				assertEquals(3, stream.limit(3).count());
+			}
+			app.flush();
+			assertEquals(0, app.getPool().getActive());
+		} catch (Exception e) {
+			Throwable t = WrapperException.unwrap(e);
+			log.error(t.toString(), t);
+			fail(t.toString());
+		}
+	}
+
+	@Test
+	public void testPaging() {
+		Application app = mkApp();
+		Base log = app.create();
+		try {
+			for (int i = 0; i < 5; i++) {
+				app.create("base" + i, BaseSub.class);
+			}
+			List<BaseSub> page = app.getListPage(BaseSub.class, null, 2);
+			assertEquals(2, page.size());
+			assertEquals("base1", page.get(1).getName());
+			page = app.getListPage(BaseSub.class, "base1", 2);
+			assertEquals("base2", page.get(0).getName());
+			page = app.getListPage(BaseSub.class, "base3", 2);
+			assertEquals(1, page.size());
+
+			BaseSub base = app.create("base", BaseSub.class);
+			for (int i = 0; i < 6; i++) {
+				base.setMsg("Changed " + i);
+			}
+			List<BaseSub> versions = base.getVersions(0, 3);
+			assertEquals(3, versions.get(2).getVersion());
+			versions = base.getVersions(3, 3);
+			assertEquals(4, versions.get(0).getVersion());
+			assertEquals(3, versions.size());
+			assertTrue(base.getVersions(7, 3).isEmpty());
+
+			// walk the logs page by page; reading logs logs too, so stop at a
+			// fixed point in time
+			LocalDateTime to = LocalDateTime.now();
+			long expected = base.getLogs().stream()
+					.filter(e -> e.getTimestamp().isBefore(to)).count();
+			List<LogEntry> paged = new ArrayList<>();
+			LogEntry after = null;
+			List<LogEntry> logs;
+			while (!(logs = app.getLogsPage(base.getName(), BaseSub.class
+					.getCanonicalName(), after, 4, null, to)).isEmpty()) {
+				assertTrue(logs.size() <= 4);
+				paged.addAll(logs);
+				after = logs.get(logs.size() - 1);
+			}
+			assertEquals(expected, paged.size());
+			for (int i = 1; i < paged.size(); i++) {
+				LogEntry prev = paged.get(i - 1);
+				LogEntry next = paged.get(i);
+				assertTrue(prev.getTimestamp().isBefore(next.getTimestamp())
+						|| prev.getTimestamp().equals(next.getTimestamp())
+						&& prev.getSeq() < next.getSeq());
+			}
+		} catch (Exception e) {
+			Throwable t = WrapperException.unwrap(e);
+			log.error(t.toString(), t);
+			fail(t.toString());
+		}
+	}
+
+	@Test
+	public void testIdentityMap() {
+		Application app = mkApp();
+		Base log = app.create();
+		try {
+			BaseSub base = app.create("base", BaseSub.class);
+			long hits = app.getIdentities().getHits();
+			assertTrue(base == app.create("base", BaseSub.class));
+			assertEquals(hits + 1, app.getIdentities().getHits());
+			assertTrue(base == app.getList(BaseSub.class).get(0));
+
+			base.setMsg("Changed");
+			base.undo();
+			assertTrue(base == app.create("base", BaseSub.class));
+			assertEquals("Hello", app.create("base", BaseSub.class).getMsg());
+
+			base.delete();
+			assertTrue(app.create("base", BaseSub.class) == null);
+			base.undelete();
+			assertTrue(base == app.create("base", BaseSub.class));
+
+			// forgotten objects are read again
+			app.getIdentities().clear();
+			BaseSub copy = app.create("base", BaseSub.class);
+			assertTrue(copy != base);
+			assertTrue(copy.equals(base));
+			System.out.println(app.getIdentities());
+		} catch (Exception e) {
+			Throwable t = WrapperException.unwrap(e);
+			log.error(t.toString(), t);
+			fail(t.toString());
+		}
+	}
+
+	@Test
+	public void testProxyClassCache() {
+		Application app = mkApp();
+		Base log = app.create();
+		try {
+			BaseSub first = app.create("base0", BaseSub.class);
+			long defined = Proxies.getDefined();
+			for (int i = 1; i < 10; i++) {
+				BaseSub base = app.create("base" + i, BaseSub.class);
+				assertTrue(base.getClass() == first.getClass());
+			}
+			app.getList(BaseSub.class);
+			assertEquals(defined, Proxies.getDefined());
+		} catch (Exception e) {
+			Throwable t = WrapperException.unwrap(e);
+			log.error(t.toString(), t);
+			fail(t.toString());
+		}
+	}
+
+	@Test
+	public void testWeaver() {
+		Application app = mkApp();
+		Base log = app.create();
+		try {
+			byte[] bytes = Weaver.weave(BaseSub.class);
+			assertTrue(bytes != null);
+			class Loader extends ClassLoader {
+				Loader() {
+					super(BaseSub.class.getClassLoader());
+				}
+
+				Class<?> define(byte[] b) {
+					return defineClass(null, b, 0, b.length);
+				}
+			}
+			Class<?> woven = new Loader().define(bytes);
+			assertEquals(BaseSub.class.getName() + "$$Woven", woven.getName());
+			assertTrue(woven.getSuperclass() == BaseSub.class);
+			assertTrue(woven.getDeclaredMethod("setMsg", String.class) != null);
+		} catch (Exception e) {
+			Throwable t = WrapperException.unwrap(e);
+			log.error(t.toString(), t);
+			fail(t.toString());
+		}
+	}
+
+	@Test
+	public void testConstructorCache() {
+		Application app = mkApp();
+		Base log = app.create();
+		try {
+			Object[] none = new Object[0];
+			Constructors.Factory factory = Constructors.find(BaseSub.class, none);
+			assertTrue(factory != null);
+			assertTrue(factory == Constructors.find(BaseSub.class, none));
+			BaseSub base = factory.newInstance("base", BaseSub.class, none);
+			assertEquals("base", base.getName());
+			// no such constructor, also remembered
+			Object[] args = new Object[] { "x" };
+			assertTrue(Constructors.find(BaseSub.class, args) == null);
+			assertTrue(Constructors.find(BaseSub.class, args) == null);
+			assertTrue(app.create("base", BaseSub.class, "x") == null);
+		} catch (Exception e) {
+			Throwable t = WrapperException.unwrap(e);
+			log.error(t.toString(), t);
+			fail(t.toString());
+		}
+	}
+
+	@Test
+	public void testGetterCache() {
+		Application app = mkApp();
+		Base log = app.create();
+		try {
+			BaseSub base = app.create("base", BaseSub.class);
+			assertEquals("Hello", Getters.get(base, BaseSub.class, "setMsg"));
+			// is-getter
+			assertEquals(true, Getters.get(base, Base.class, "setCurrent"));
+			assertEquals(null, Getters.get(base, BaseSub.class, "setNothing"));
+			base.setMsg("Changed");
+			List<LogEntry> setters = base.getLogs().stream()
+					.filter(e -> e.getKind() == LogEntry.Kind.SETTER)
+					.collect(Collectors.toList());
+			assertEquals("Hello", setters.get(0).getObjList().get(0));
+		} catch (Exception e) {
+			Throwable t = WrapperException.unwrap(e);
+			log.error(t.toString(), t);
+			fail(t.toString());
+		}
+	}
+
+	@Test
+	public void testCallerLocation() {
+		Application app = mkApp();
+		Base log = app.create();
+		try {
+			Map<CallerLocation.Mode, LogEntry> entries = new java.util.EnumMap<>(
+					CallerLocation.Mode.class);
+			for (CallerLocation.Mode mode : CallerLocation.Mode.values()) {
+				app.setCallerLocation(CallerLocation.of(mode, 1));
+				log.info(mode.toString());
+			}
+			app.setCallerLocation(CallerLocation.DEFAULT);
+			for (LogEntry entry : log.getLogs()) {
+				for (CallerLocation.Mode mode : CallerLocation.Mode.values()) {
+					if (mode.toString().equals(entry.getMessage())) {
+						entries.put(mode, entry);
+					}
+				}
+			}
+			LogEntry full = entries.get(CallerLocation.Mode.FULL);
+			assertEquals("testCallerLocation", full.getMethod());
+			for (CallerLocation.Mode mode : Arrays.asList(
+					CallerLocation.Mode.WALKER, CallerLocation.Mode.SAMPLED)) {
+				LogEntry entry = entries.get(mode);
+				assertEquals(full.getMethod(), entry.getMethod());
+				assertEquals(full.getMethodClass(), entry.getMethodClass());
+				assertEquals(full.getCaller(), entry.getCaller());
+				assertEquals(full.getCallerLine(), entry.getCallerLine());
+			}
+			assertEquals(-1, entries.get(CallerLocation.Mode.OFF).getMethodLine());
+			String text = Application.formatLog(entries.get(CallerLocation.Mode.OFF));
+			assertTrue(text, text.contains("method: " + entries.get(CallerLocation.Mode.OFF).getClazz() + ".?() caller: ?.?()"));
+		} catch (Exception e) {
+			Throwable t = WrapperException.unwrap(e);
+			log.error(t.toString(), t);
+			fail(t.toString());
+		}
+	}
+
+	@Test
+	public void testLogLevels() {
+		Application app = mkApp();
+		Base log = app.create();
+		try {
+			BaseSub base = app.create("base", BaseSub.class);
+			base.setDbLogLevel(LogEntry.Kind.WARN);
+			base.setLogLocation(null);
+			assertTrue(!base.isLogEnabled(LogEntry.Kind.DEBUG));
+			assertTrue(!base.isLogEnabled(LogEntry.Kind.SETTER));
+			assertTrue(base.isLogEnabled(LogEntry.Kind.ERROR));
+			base.debug("not logged %s", "at all");
+			base.setMsg("Changed");
+			base.error("logged");
+			// entries of other tests on "base" may still be arriving
+			List<LogEntry> logs = base.getLogs().stream()
+					.filter(l -> "testLogLevels".equals(l.getMethod())
+							|| "testLogLevels".equals(l.getCaller()))
+					.collect(Collectors.toList());
+			assertEquals(1, logs.size());
+			assertEquals(LogEntry.Kind.ERROR, logs.get(logs.size() - 1).getKind());
+			// changes are still stored
+			assertEquals(2, base.getVersion());
+			base.setDbLogLevel(LogEntry.Kind.NONE);
+			assertTrue(!base.isLogEnabled(LogEntry.Kind.ERROR));
+		} catch (Exception e) {
+			Throwable t = WrapperException.unwrap(e);
+			log.error(t.toString(), t);
+			fail(t.toString());
+		}
+	}
+
+	@Test
+	public void testFileAppender() {
+		Application app = mkApp();
+		Base log = app.create();
+		long maxBytes = FileAppender.maxBytes;
+		int maxOpen = FileAppender.maxOpen;
+		try {
+			File dir = new File("./logs/appender");
+			for (File f : dir.exists() ? dir.listFiles() : new File[0]) {
+				f.delete();
+			}
+			FileAppender.maxBytes = 1000;
+			FileAppender.maxOpen = 2;
+			long evicted = FileAppender.getEvicted();
+			for (int i = 0; i < 30; i++) {
+				FileAppender.append(new File(dir, "f" + (i % 3) + ".log"),
+						String.format("line %02d of f%d%n", i, i % 3));
+			}
+			assertTrue(FileAppender.getEvicted() > evicted);
+			FileAppender.flushAll();
+			FileAppender.append(new File(dir, "big.log"), new String(
+					new char[600]).replace('\0', 'x'));
+			FileAppender.append(new File(dir, "big.log"), new String(
+					new char[600]).replace('\0', 'y'));
+			FileAppender.closeAll();
+			// rotated by size
+			assertEquals(600, new File(dir, "big.log").length());
+			assertEquals(2, dir.listFiles((d, n) -> n.startsWith("big.log")).length);
+			// nothing lost to closing
+			List<String> lines = java.nio.file.Files.readAllLines(new File(dir,
+					"f1.log").toPath());
+			assertEquals(10, lines.size());
+			System.out.println(FileAppender.metrics());
+		} catch (Exception e) {
+			Throwable t = WrapperException.unwrap(e);
+			log.error(t.toString(), t);
+			fail(t.toString());
+		} finally {
+			FileAppender.maxBytes = maxBytes;
+			FileAppender.maxOpen = maxOpen;
+		}
+	}
+
+	@Test
+	public void testLogJournal() {
+		Application app = mkApp();
+		Base log = app.create();
+		LogJournal journal = null;
+		try {
+			File dir = new File("./logs/journal");
+			for (File f : dir.exists() ? dir.listFiles() : new File[0]) {
+				f.delete();
+			}
+			journal = new LogJournal(dir, "test", 4096, LogEntry.Kind.DEBUG);
+			LocalDateTime start = LocalDateTime.now();
+			for (int i = 0; i < 100; i++) {
+				LogEntry entry = new LogEntry();
+				entry.setName("obj" + (i % 2));
+				entry.setClazz(BaseSub.class.getCanonicalName());
+				entry.setTimestamp(start.plusNanos(i * 1000));
+				entry.setThread("main");
+				entry.setMethod("test");
+				entry.setMethodClass(BaseSub.class.getCanonicalName());
+				entry.setMethodLine(i);
+				entry.setCaller("caller");
+				entry.setCallerClass(TestApplication.class.getCanonicalName());
+				entry.setCallerLine(-1);
+				entry.setKind(i % 10 == 9 ? LogEntry.Kind.EXIT : LogEntry.Kind.INFO);
+				entry.setObjList(Arrays.asList("result " + i));
+				entry.setMessage("message " + i);
+				journal.append(entry);
+			}
+			// a record bigger than a segment
+			LogEntry big = new LogEntry();
+			big.setName("big");
+			big.setTimestamp(start);
+			big.setKind(LogEntry.Kind.DEBUG);
+			big.setMessage(new String(new char[10000]).replace('\0', 'x'));
+			journal.append(big);
+			assertTrue(journal.getSegments() > 2);
+			System.out.println(journal);
+
+			List<LogEntry> all = journal.getLogs("obj1", null, null, null);
+			assertEquals(50, all.size());
+			LogEntry first = all.get(0);
+			assertEquals(BaseSub.class.getCanonicalName(), first.getClazz());
+			assertEquals(start.plusNanos(1000), first.getTimestamp());
+			assertEquals("main", first.getThread());
+			assertEquals(1, first.getMethodLine());
+			assertEquals(-1, first.getCallerLine());
+			assertEquals("message 1", first.getMessage());
+			assertEquals(Arrays.asList("result 1"), first.getObjList());
+
+			List<LogEntry> paged = new ArrayList<>();
+			LogEntry after = null;
+			for (List<LogEntry> page; !(page = journal.getLogsPage("obj1",
+					null, after, 7, null, null)).isEmpty(); after = page
+					.get(page.size() - 1)) {
+				paged.addAll(page);
+			}
+			assertEquals(all, paged);
+			assertEquals(10000, journal.getLogs("big", null, null, null).get(0)
+					.getMessage().length());
+			assertEquals(0, journal.getLogs(null, null, null, start).size());
+
+			System.out.println(Application.formatLog(all.get(4)));
+			assertTrue(Application.formatLog(all.get(4)).contains(
+					"returns: result 9"));
+		} catch (Exception e) {
+			Throwable t = WrapperException.unwrap(e);
+			log.error(t.toString(), t);
+			fail(t.toString());
+		} finally {
+			if (journal != null) {
+				journal.close();
+			}
+		}
+	}
+
+	@Test
+	public void testStackDedupe() {
+		Application app = mkApp();
+		Base log = app.create();
+		try {
+			BaseSub base = app.create("stacks", BaseSub.class);
+			StackStore stacks = app.getStackStore();
+			long inserted = stacks.getInserted();
+			Exception same = new IllegalStateException("same");
+			for (int i = 0; i < 5; i++) {
+				base.error(same, "failed %d", i);
+			}
+			base.warn(new IllegalArgumentException("other"), "other");
+			List<LogEntry> logs = base.getLogs().stream()
+					.filter(l -> l.getStackHash() != null)
+					.collect(Collectors.toList());
+			assertEquals(6, logs.size());
+			assertEquals(inserted + 2, stacks.getInserted());
+			LogEntry first = logs.get(0);
+			assertEquals(Arrays.asList((Object[]) same.getStackTrace()),
+					first.getObjList());
+			assertEquals(first.getStackHash(), logs.get(4).getStackHash());
+			assertTrue(!first.getStackHash().equals(logs.get(5).getStackHash()));
+			assertTrue(stacks.top(10).get(first.getStackHash()) >= 5);
+			assertTrue(Application.formatLog(first).contains(
+					same.getStackTrace()[0].toString()));
+			System.out.println(stacks);
+		} catch (Exception e) {
+			Throwable t = WrapperException.unwrap(e);
+			log.error(t.toString(), t);
+			fail(t.toString());
+		}
+	}
+
+	@Test
+	public void testCodecs() {
+		Application app = mkApp();
+		Base log = app.create();
+		try {
+			BaseSub base = app.create("codecs", BaseSub.class);
+			base.setMsg("Typed");
+			String json = Application.toJson(base);
+			assertEquals(Application.mapper.writeValueAsString(base), json);
+			long built = Codecs.getBuilt();
+			Application.toJson(base);
+			assertEquals(built, Codecs.getBuilt());
+			// read as the template's class, not as a map
+			BaseSub copy = Application.fromJson(json, new BaseSub("x", BaseSub.class));
+			assertEquals(BaseSub.class, copy.getClass());
+			assertEquals("Typed", copy.getMsg());
+			assertEquals("codecs", copy.getName());
+		} catch (Exception e) {
+			Throwable t = WrapperException.unwrap(e);
+			log.error(t.toString(), t);
+			fail(t.toString());
+		}
+	}
+
+	@Test
+	public void testGeneratedCodec() {
+		Application app = mkApp();
+		Base log = app.create();
+		try {
+			Class.forName(BaseSub.class.getName() + JsonCodec.SUFFIX);
+			BaseSub base = app.create("generated", BaseSub.class);
+			base.setMsg("Streamed \"quoted\"");
+			// proxies use the codec of their class, and write what the mapper writes
+			assertTrue(base.getClass() != BaseSub.class);
+			long generated = Codecs.getGenerated();
+			String json = Application.toJson(base);
+			assertTrue(Codecs.getGenerated() > 0 || generated > 0);
+			assertEquals(Application.mapper.writeValueAsString(base), json);
+			assertTrue(!json.contains("inBatch"));
+			assertTrue(!json.contains("logLevel"));
+			BaseSub copy = Application.fromJson(json, new BaseSub("x", BaseSub.class));
+			assertEquals("Streamed \"quoted\"", copy.getMsg());
+			assertEquals("generated", copy.getName());
+			assertEquals(base.getCreated(), copy.getCreated());
+			// unknown fields are skipped
+			copy = Application.fromJson("{\"msg\":\"m\",\"extra\":{\"a\":[1,2]}}",
+					new BaseSub("y", BaseSub.class));
+			assertEquals("m", copy.getMsg());
+		} catch (Exception e) {
+			Throwable t = WrapperException.unwrap(e);
+			log.error(t.toString(), t);
+			fail(t.toString());
+		}
+	}
+
+	@Test
+	public void testStorageFormat() {
+		Application app = mkApp();
+		Base log = app.create();
+		Db db = app.getDb();
+		StorageFormat format = db.getStorageFormat();
+		try {
+			db.setStorageFormat(StorageFormat.JSON);
+			BaseSub text = app.create("formatText", BaseSub.class);
+			text.setMsg("Text");
+			db.setStorageFormat(StorageFormat.SMILE);
+			BaseSub smile = app.create("formatSmile", BaseSub.class);
+			smile.setMsg("Smile");
+			smile.entry("formatArg", 42);
+			// unchanged: no new version, although stored in another format
+			text.setMsg("Text");
+			assertEquals(2, text.getVersions().size());
+			app.flush();
+
+			// rows of both formats are read side by side
+			BaseSub t = db.retrieve("formatText", BaseSub.class, true);
+			BaseSub s = db.retrieve("formatSmile", BaseSub.class, true);
+			assertEquals("Text", t.getMsg());
+			assertEquals("Smile", s.getMsg());
+			assertTrue(t.stored == null);
+			assertEquals(StorageFormat.SMILE, s.stored.getFormat());
+			// JSON text derived from the binary row
+			assertEquals(Application.toJson(s), s.getJson());
+			List<BaseSub> versions = smile.getVersions();
+			assertEquals(2, versions.size());
+			assertEquals("Smile", versions.get(1).getMsg());
+
+			boolean found = false;
+			for (LogEntry entry : smile.getLogs()) {
+				if (entry.getObjList() != null && entry.getObjList().contains("formatArg")) {
+					assertEquals(42, entry.getObjList().get(1));
+					found = true;
+				}
+			}
+			assertTrue(found);
+
+			// CBOR payloads, and binary smaller than text
+			StorageFormat.Payload cbor = StorageFormat.CBOR.encode(s);
+			assertEquals("Smile", cbor.decode(new BaseSub("x", BaseSub.class)).getMsg());
+			assertEquals(Application.toJson(s), cbor.toJson());
+			assertTrue(StorageFormat.SMILE.encode(s).size() < Application.toJson(s).length());
+		} catch (Exception e) {
+			Throwable t = WrapperException.unwrap(e);
+			log.error(t.toString(), t);
+			fail(t.toString());
+		} finally {
+			db.setStorageFormat(format);
+		}
+	}
+
+	@Test
+	public void testCompression() {
+		Application app = mkApp();
+		Base log = app.create();
+		Compressor compressor = app.getCompressor();
+		String clazz = BaseSub.class.getCanonicalName();
+		String big = String.join("", Collections.nCopies(500, "compress me "));
+		StorageFormat format = app.getStorageFormat();
+		try {
+			long compressed = compressor.getCompressed();
+			compressor.configure(clazz, Compressor.Algorithm.DEFLATE, 1000);
+			BaseSub deflated = app.create("compressDeflate", BaseSub.class);
+			deflated.setMsg(big);
+			deflated.entry(big);
+			compressor.configure(clazz, Compressor.Algorithm.LZ4, 1000);
+			app.setStorageFormat(StorageFormat.SMILE);
+			BaseSub lz4 = app.create("compressLz4", BaseSub.class);
+			lz4.setMsg(big);
+			app.flush();
+			assertTrue(compressor.getCompressed() >= compressed + 3);
+			assertTrue(compressor.getRatio() < 0.5);
+
+			// small first versions are stored as they are, big second ones compressed
+			for (String name : Arrays.asList("compressDeflate", "compressLz4")) {
+				BaseSub base = app.getDb().retrieve(name, BaseSub.class, true);
+				assertEquals(big, base.getMsg());
+				List<BaseSub> versions = base.getVersions();
+				assertEquals("Hello", versions.get(0).getMsg());
+				assertEquals(big, versions.get(1).getMsg());
+			}
+			boolean found = false;
+			for (LogEntry entry : deflated.getLogs()) {
+				found |= entry.getObjList() != null && entry.getObjList().contains(big);
+			}
+			assertTrue(found);
+			assertTrue(compressor.getDecompressed() > 0);
+
+			// damaged rows fail instead of hanging or allocating what the row says
+			byte[] bytes = big.getBytes("UTF-8");
+			for (Compressor.Algorithm algorithm : Arrays.asList(
+					Compressor.Algorithm.DEFLATE, Compressor.Algorithm.LZ4)) {
+				byte[] packed = compressor.compress(algorithm, bytes);
+				assertEquals(big, new String(compressor.decompress(algorithm, packed), "UTF-8"));
+				byte[] truncated = Arrays.copyOf(packed, packed.length / 2);
+				byte[] inflated = packed.clone();
+				inflated[0] = 0x7f;
+				for (byte[] damaged : Arrays.asList(truncated, inflated)) {
+					try {
+						compressor.decompress(algorithm, damaged);
+						fail("Damaged " + algorithm + " payload decompressed");
+					} catch (WrapperException expected) {
+					}
+				}
+			}
+			System.out.println(compressor);
+		} catch (Exception e) {
+			Throwable t = WrapperException.unwrap(e);
+			log.error(t.toString(), t);
+			fail(t.toString());
+		} finally {
+			compressor.configure(clazz, Compressor.Algorithm.NONE, 1024);
+			app.setStorageFormat(format);
+		}
+	}
+
+	@Test
+	public void testLogJournalFailure() {
+		Application app = mkApp();
+		Base log = app.create();
+		try {
+			File dir = new File("./logs/journalFailure");
+			for (File f : dir.exists() ? dir.listFiles() : new File[0]) {
+				f.delete();
+			}
+			LogJournal journal = new LogJournal(dir, "test", 4096, LogEntry.Kind.DEBUG);
+			// the next segment cannot be created
+			for (File f : dir.listFiles()) {
+				f.delete();
+			}
+			dir.delete();
+			LogEntry big = new LogEntry();
+			big.setName("big");
+			big.setTimestamp(LocalDateTime.now());
+			big.setKind(LogEntry.Kind.DEBUG);
+			big.setMessage(new String(new char[10000]).replace('\0', 'x'));
+			journal.append(big);
+			journal.append(big);
+			assertEquals(1, journal.getFailed());
+			assertEquals(0, journal.getWritten());
+		} catch (Exception e) {
+			Throwable t = WrapperException.unwrap(e);
+			log.error(t.toString(), t);
+			fail(t.toString());
+		}
+	}
+
+
+	@Test
+	public void testLogJournalRoll() {
+		Application app = mkApp();
+		Base log = app.create();
+		LogJournal journal = null;
+		try {
+			File dir = new File("./logs/journalRoll");
+			for (File f : dir.exists() ? dir.listFiles() : new File[0]) {
+				f.delete();
+			}
+			journal = new LogJournal(dir, "test", 4096, LogEntry.Kind.DEBUG);
+			LogEntry entry = new LogEntry();
+			entry.setName("obj");
+			entry.setClazz(BaseSub.class.getCanonicalName());
+			entry.setTimestamp(LocalDateTime.now());
+			entry.setThread("main");
+			entry.setMethod("test");
+			entry.setMethodClass(BaseSub.class.getCanonicalName());
+			entry.setCaller("caller");
+			entry.setCallerClass(TestApplication.class.getCanonicalName());
+			entry.setKind(LogEntry.Kind.INFO);
+			entry.setMessage("small");
+			journal.append(entry);
+			// bigger than a segment, with names only defined in the one before
+			entry.setMessage(new String(new char[10000]).replace('\0', 'x'));
+			journal.append(entry);
+			assertEquals(0, journal.getFailed());
+			assertEquals(2, journal.getWritten());
+			List<LogEntry> all = journal.getLogs("obj", null, null, null);
+			assertEquals(2, all.size());
+			assertEquals(10000, all.get(1).getMessage().length());
+			assertEquals(TestApplication.class.getCanonicalName(), all.get(1)
+					.getCallerClass());
+		} catch (Exception e) {
+			Throwable t = WrapperException.unwrap(e);
+			log.error(t.toString(), t);
+			fail(t.toString());
+		} finally {
+			if (journal != null) {
+				journal.close();
+			}
+		}
+	}
+
+	@Test
+	public void testNewVersionRetry() {
+		Application app = mkApp();
+		Base log = app.create();
+		try {
+			BaseSub base = app.create("base", BaseSub.class);
+			assertEquals(1, base.getVersion());
+			// the previous version cannot be adjusted: the new one is rolled back
+			execute(app, "UPDATE APPLICATION SET VERSION = -1 WHERE NAME = 'base'");
+			try {
+				base.setMsg("Changed");
+				fail("new version stored");
+			} catch (WrapperException e) {
+				// expected
+			}
+			assertEquals(1, base.getVersion());
+			execute(app, "UPDATE APPLICATION SET VERSION = 1 WHERE NAME = 'base'");
+			// the same content again is not taken as unchanged
+			base.store();
+			assertEquals(2, base.getVersion());
+			List<BaseSub> versions = base.getVersions();
+			assertEquals(2, versions.size());
+			assertEquals("Changed", versions.get(1).getMsg());
+		} catch (Exception e) {
+			Throwable t = WrapperException.unwrap(e);
+			log.error(t.toString(), t);
+			fail(t.toString());
+		}
+	}
+
+	private static void execute(Application app, String sql) throws Exception {
+		try (PooledConnection conn = app.getPool().checkout();
+				Statement st = conn.getConnection().createStatement()) {
+			st.executeUpdate(sql);
+		}
+	}
+
 }